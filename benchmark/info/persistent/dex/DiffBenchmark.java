@@ -0,0 +1,172 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.persistent.dex;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import vendor.com.android.dexdeps.DexData;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Each stage of a diff, on synthetic apps of 10k to 1M methods: parsing
+ * the DEX, formatting the method signatures, unmapping them, and diffing
+ * two builds; and the whole thing as the command line runs it.
+ * <p>
+ * Run with {@code ./gradlew jmh}, which adds the gc profiler so each
+ * result comes with its allocation rate.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx4g"})
+public class DiffBenchmark {
+    @Param({"10000", "100000", "1000000"})
+    public int methods;
+
+    private File mDir;
+    private File mOldApk;
+    private File mNewApk;
+    private File mOldMapping;
+    private File mNewMapping;
+
+    private List<byte[]> mImages;
+    private List<DexData> mDexes;
+    private Deobfuscator mDeobfuscator;
+    private Set<String> mOldMethods;
+    private Set<String> mNewMethods;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        mDir = Files.createTempDirectory("dexbench").toFile();
+        SyntheticDex oldBuild = new SyntheticDex(methods, 0);
+        SyntheticDex newBuild = new SyntheticDex(methods, 1);
+        mOldApk = new File(mDir, "old.apk");
+        mNewApk = new File(mDir, "new.apk");
+        mOldMapping = new File(mDir, "old-mapping.txt");
+        mNewMapping = new File(mDir, "new-mapping.txt");
+        oldBuild.writeApk(mOldApk);
+        newBuild.writeApk(mNewApk);
+        oldBuild.writeMapping(mOldMapping);
+        newBuild.writeMapping(mNewMapping);
+
+        mImages = oldBuild.dexImages();
+        mDexes = load(mImages);
+        mDeobfuscator = Deobfuscator.load(mOldMapping, null, null, 1);
+        mOldMethods = formatAll(mDexes, null);
+        mNewMethods = formatAll(load(newBuild.dexImages()), null);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        for (File file : mDir.listFiles()) {
+            file.delete();
+        }
+        mDir.delete();
+    }
+
+    @Benchmark
+    public List<DexData> parse() throws IOException {
+        return load(mImages);
+    }
+
+    @Benchmark
+    public Set<String> format() {
+        return formatAll(mDexes, null);
+    }
+
+    @Benchmark
+    public Deobfuscator loadMapping() throws IOException {
+        return Deobfuscator.load(mOldMapping, null, null, 1);
+    }
+
+    @Benchmark
+    public Deobfuscator loadMappingParallel() throws IOException {
+        return Deobfuscator.load(mOldMapping, null, null, Runtime.getRuntime().availableProcessors());
+    }
+
+    @Benchmark
+    public Set<String> unmap() {
+        return formatAll(mDexes, mDeobfuscator);
+    }
+
+    /**
+     * Interns both builds' methods and lists the added and removed ones,
+     * as Main does for each pair of inputs.
+     */
+    @Benchmark
+    public void diff(Blackhole blackhole) {
+        SignatureDictionary dictionary = new SignatureDictionary();
+        int[] oldIds = dictionary.intern(mOldMethods);
+        int[] newIds = dictionary.intern(mNewMethods);
+        blackhole.consume(dictionary.getSorted(SignatureDictionary.subtract(newIds, oldIds)));
+        blackhole.consume(dictionary.getSorted(SignatureDictionary.subtract(oldIds, newIds)));
+    }
+
+    @Benchmark
+    public long endToEnd() {
+        File report = new File(mDir, "report.txt");
+        new Main().run(new String[]{
+                "--mapping=" + mOldMapping + "," + mNewMapping,
+                "--output=" + report,
+                mOldApk.getPath(), mNewApk.getPath()}, System.out);
+        return report.length();
+    }
+
+    private static List<DexData> load(List<byte[]> images) throws IOException {
+        List<DexData> dexes = new ArrayList<>();
+        for (byte[] image : images) {
+            DexData dexData = new DexData(ByteBuffer.wrap(image));
+            dexData.load();
+            dexes.add(dexData);
+        }
+        return dexes;
+    }
+
+    /**
+     * Formats (and unmaps) every method, class by class, the way Main
+     * does.  A new formatter each time, so its caches start out empty.
+     */
+    private static Set<String> formatAll(List<DexData> dexes, Deobfuscator deobfuscator) {
+        Set<String> all = new HashSet<>();
+        Set<String> methods = new HashSet<>();
+        Set<String> obfuscatedMethods = deobfuscator != null ? new HashSet<>() : null;
+        StringBuilder sb = new StringBuilder();
+        for (DexData dexData : dexes) {
+            SignatureFormatter formatter = new SignatureFormatter(dexData);
+            int methodCount = dexData.getMethodCount();
+            int end;
+            for (int start = 0; start < methodCount; start = end) {
+                int classIdx = dexData.getMethodClassIndex(start);
+                end = start + 1;
+                while (end < methodCount && dexData.getMethodClassIndex(end) == classIdx) {
+                    end++;
+                }
+                if (Main.formatMethods(formatter, deobfuscator, classIdx, start, end, sb,
+                        methods, obfuscatedMethods)) {
+                    all.addAll(methods);
+                }
+            }
+        }
+        return all;
+    }
+}
@@ -0,0 +1,342 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.persistent.dex;
+
+import vendor.com.android.dexdeps.DexData;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.zip.Adler32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Generates obfuscated DEX images of any size, and their mapping files,
+ * for the benchmarks.  Every class has {@link #METHODS_PER_CLASS} methods
+ * over a fixed set of protos; as many classes as fit go in each DEX, so
+ * a large app is multidex.
+ * <p>
+ * Variant 0 is the "old" build.  Variant 1 changes the proto of about one
+ * method in a hundred, so a diff of the two has something to report.  The
+ * images are only as valid as DexData needs: there are no fields, code or
+ * map_list.
+ */
+class SyntheticDex {
+    static final int METHODS_PER_CLASS = 20;
+
+    // 60000 methods, under the 64K method_ids limit of a real DEX.
+    private static final int CLASSES_PER_DEX = 3000;
+
+    private static final String[] RETURN_TYPES = {"V", "I", "J", "Ljava/lang/String;", "Ljava/util/List;"};
+    private static final String[] PARAMETER_TYPES = {"I", "J", "Ljava/lang/String;", "Ljava/util/List;", "[I"};
+
+    // Every proto: each return type with zero, one or two parameters.
+    private static final int PROTO_COUNT =
+            RETURN_TYPES.length * (1 + PARAMETER_TYPES.length + PARAMETER_TYPES.length * PARAMETER_TYPES.length);
+
+    private final int mClassCount;
+    private final int mVariant;
+
+    /**
+     * @param methodCount how many methods in all, rounded up to whole
+     *                    classes.
+     * @param variant     0 or 1.
+     */
+    SyntheticDex(int methodCount, int variant) {
+        mClassCount = (methodCount + METHODS_PER_CLASS - 1) / METHODS_PER_CLASS;
+        mVariant = variant;
+    }
+
+    /**
+     * Returns the DEX images, in the order they'd appear in an APK.
+     */
+    List<byte[]> dexImages() {
+        List<byte[]> images = new ArrayList<>();
+        for (int first = 0; first < mClassCount; first += CLASSES_PER_DEX) {
+            images.add(dexImage(first, Math.min(first + CLASSES_PER_DEX, mClassCount)));
+        }
+        return images;
+    }
+
+    /**
+     * Writes an APK holding just the DEX images.
+     */
+    void writeApk(File file) throws IOException {
+        ZipOutputStream out = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        try {
+            List<byte[]> images = dexImages();
+            for (int i = 0; i < images.size(); i++) {
+                out.putNextEntry(new ZipEntry(i == 0 ? "classes.dex" : "classes" + (i + 1) + ".dex"));
+                out.write(images.get(i));
+                out.closeEntry();
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Writes the ProGuard mapping of this variant.
+     */
+    void writeMapping(File file) throws IOException {
+        Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8));
+        try {
+            out.write("# synthetic mapping\n");
+            for (int cls = 0; cls < mClassCount; cls++) {
+                out.write(originalClassName(cls) + " -> " + obfuscatedClassName(cls) + ":\n");
+                for (int method = 0; method < METHODS_PER_CLASS; method++) {
+                    int proto = proto(cls, method);
+                    out.write("    " + javaType(RETURN_TYPES[returnType(proto)]) + " orig_m" + method + "(");
+                    int[] parameters = parameters(proto);
+                    for (int i = 0; i < parameters.length; i++) {
+                        if (i > 0) {
+                            out.write(",");
+                        }
+                        out.write(javaType(PARAMETER_TYPES[parameters[i]]));
+                    }
+                    out.write(") -> " + methodName(method) + "\n");
+                }
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    private byte[] dexImage(int firstClass, int endClass) {
+        // Strings, and the types and protos that refer to them.
+        Map<String, Integer> strings = new LinkedHashMap<>();
+        List<Integer> typeDescriptors = new ArrayList<>();
+        Map<String, Integer> types = new HashMap<>();
+        List<String> poolTypes = new ArrayList<>(new TreeSet<>(Arrays.asList(RETURN_TYPES)));
+        for (String type : PARAMETER_TYPES) {
+            if (!poolTypes.contains(type)) {
+                poolTypes.add(type);
+            }
+        }
+        for (String type : poolTypes) {
+            types.put(type, typeDescriptors.size());
+            typeDescriptors.add(string(strings, type));
+        }
+        for (int cls = firstClass; cls < endClass; cls++) {
+            typeDescriptors.add(string(strings, "L" + obfuscatedClassName(cls).replace('.', '/') + ";"));
+        }
+        int[] protoShorties = new int[PROTO_COUNT];
+        for (int proto = 0; proto < PROTO_COUNT; proto++) {
+            StringBuilder shorty = new StringBuilder().append(shorty(RETURN_TYPES[returnType(proto)]));
+            for (int parameter : parameters(proto)) {
+                shorty.append(shorty(PARAMETER_TYPES[parameter]));
+            }
+            protoShorties[proto] = string(strings, shorty.toString());
+        }
+        int[] methodNames = new int[METHODS_PER_CLASS];
+        for (int method = 0; method < METHODS_PER_CLASS; method++) {
+            methodNames[method] = string(strings, methodName(method));
+        }
+
+        int classCount = endClass - firstClass;
+        int methodCount = classCount * METHODS_PER_CLASS;
+        int stringIdsOff = DexData.HEADER_SIZE;
+        int typeIdsOff = stringIdsOff + strings.size() * 4;
+        int protoIdsOff = typeIdsOff + typeDescriptors.size() * 4;
+        int methodIdsOff = protoIdsOff + PROTO_COUNT * 12;
+        int classDefsOff = methodIdsOff + methodCount * 8;
+        int dataOff = classDefsOff + classCount * 32;
+
+        // The data section: parameter type lists, then string data.
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        int[] parametersOffs = new int[PROTO_COUNT];
+        for (int proto = 0; proto < PROTO_COUNT; proto++) {
+            int[] parameters = parameters(proto);
+            if (parameters.length == 0) {
+                continue;
+            }
+            parametersOffs[proto] = dataOff + data.size();
+            writeInt(data, parameters.length);
+            for (int parameter : parameters) {
+                int type = types.get(PARAMETER_TYPES[parameter]);
+                data.write(type);
+                data.write(type >>> 8);
+            }
+            while (data.size() % 4 != 0) {
+                data.write(0);
+            }
+        }
+        int[] stringDataOffs = new int[strings.size()];
+        int index = 0;
+        for (String string : strings.keySet()) {
+            stringDataOffs[index++] = dataOff + data.size();
+            writeUnsignedLeb128(data, string.length());
+            // Only ASCII, so this is also MUTF-8.
+            byte[] bytes = string.getBytes(StandardCharsets.US_ASCII);
+            data.write(bytes, 0, bytes.length);
+            data.write(0);
+        }
+
+        ByteBuffer dex = ByteBuffer.allocate(dataOff + data.size()).order(ByteOrder.LITTLE_ENDIAN);
+        dex.put("dex\n035\0".getBytes(StandardCharsets.US_ASCII));
+        dex.position(32);
+        dex.putInt(dex.capacity());                     // file_size
+        dex.putInt(DexData.HEADER_SIZE);                // header_size
+        dex.putInt(0x12345678);                         // endian_tag
+        dex.putInt(0).putInt(0);                        // link
+        dex.putInt(0);                                  // map_off
+        dex.putInt(strings.size()).putInt(stringIdsOff);
+        dex.putInt(typeDescriptors.size()).putInt(typeIdsOff);
+        dex.putInt(PROTO_COUNT).putInt(protoIdsOff);
+        dex.putInt(0).putInt(0);                        // field_ids
+        dex.putInt(methodCount).putInt(methodIdsOff);
+        dex.putInt(classCount).putInt(classDefsOff);
+        dex.putInt(data.size()).putInt(dataOff);
+
+        for (int off : stringDataOffs) {
+            dex.putInt(off);
+        }
+        for (int descriptor : typeDescriptors) {
+            dex.putInt(descriptor);
+        }
+        for (int proto = 0; proto < PROTO_COUNT; proto++) {
+            dex.putInt(protoShorties[proto]);
+            dex.putInt(types.get(RETURN_TYPES[returnType(proto)]));
+            dex.putInt(parametersOffs[proto]);
+        }
+        for (int cls = firstClass; cls < endClass; cls++) {
+            int type = poolTypes.size() + cls - firstClass;
+            for (int method = 0; method < METHODS_PER_CLASS; method++) {
+                dex.putShort((short) type);
+                dex.putShort((short) proto(cls, method));
+                dex.putInt(methodNames[method]);
+            }
+        }
+        for (int cls = firstClass; cls < endClass; cls++) {
+            dex.putInt(poolTypes.size() + cls - firstClass);   // class_idx
+            dex.putInt(1);                                      // access_flags
+            dex.putInt(-1);                                     // superclass_idx
+            for (int i = 0; i < 5; i++) {
+                dex.putInt(0);
+            }
+        }
+        dex.put(data.toByteArray());
+
+        byte[] bytes = dex.array();
+        sign(bytes);
+        return bytes;
+    }
+
+    /**
+     * Fills in the signature and checksum, so distinct images have
+     * distinct headers, as real ones do.
+     */
+    private static void sign(byte[] dex) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException nsae) {
+            throw new IllegalStateException(nsae);
+        }
+        digest.update(dex, 32, dex.length - 32);
+        System.arraycopy(digest.digest(), 0, dex, 12, 20);
+
+        Adler32 adler = new Adler32();
+        adler.update(dex, 12, dex.length - 12);
+        ByteBuffer.wrap(dex).order(ByteOrder.LITTLE_ENDIAN).putInt(8, (int) adler.getValue());
+    }
+
+    private int proto(int cls, int method) {
+        int proto = (cls * 7 + method * 3) % PROTO_COUNT;
+        if (mVariant == 1 && (cls * METHODS_PER_CLASS + method) % 97 == 0) {
+            proto = (proto + 1) % PROTO_COUNT;
+        }
+        return proto;
+    }
+
+    private static int returnType(int proto) {
+        return proto % RETURN_TYPES.length;
+    }
+
+    /**
+     * Returns the PARAMETER_TYPES indices of a proto's parameters.
+     */
+    private static int[] parameters(int proto) {
+        int shape = proto / RETURN_TYPES.length;
+        if (shape == 0) {
+            return new int[0];
+        } else if (shape <= PARAMETER_TYPES.length) {
+            return new int[]{shape - 1};
+        }
+        shape -= 1 + PARAMETER_TYPES.length;
+        return new int[]{shape / PARAMETER_TYPES.length, shape % PARAMETER_TYPES.length};
+    }
+
+    private static String originalClassName(int cls) {
+        return "com.example.pkg" + cls / 50 + ".Class" + cls;
+    }
+
+    private static String obfuscatedClassName(int cls) {
+        return "a." + Integer.toString(cls / 50, 36) + ".b" + Integer.toString(cls % 50, 36);
+    }
+
+    private static String methodName(int method) {
+        return String.valueOf((char) ('a' + method));
+    }
+
+    private static char shorty(String descriptor) {
+        char ch = descriptor.charAt(0);
+        return ch == '[' ? 'L' : ch;
+    }
+
+    private static String javaType(String descriptor) {
+        switch (descriptor) {
+            case "V":
+                return "void";
+            case "I":
+                return "int";
+            case "J":
+                return "long";
+            case "[I":
+                return "int[]";
+            default:
+                return descriptor.substring(1, descriptor.length() - 1).replace('/', '.');
+        }
+    }
+
+    private static int string(Map<String, Integer> strings, String string) {
+        Integer index = strings.get(string);
+        if (index == null) {
+            index = strings.size();
+            strings.put(string, index);
+        }
+        return index;
+    }
+
+    private static void writeInt(ByteArrayOutputStream out, int value) {
+        out.write(value);
+        out.write(value >>> 8);
+        out.write(value >>> 16);
+        out.write(value >>> 24);
+    }
+
+    private static void writeUnsignedLeb128(ByteArrayOutputStream out, int value) {
+        while ((value & ~0x7f) != 0) {
+            out.write((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.persistent.dex;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * The class and method signatures of every input of a run, as one bitset
+ * of {@link SignatureDictionary} ids per input, so any two inputs can be
+ * compared, and each signature's history followed, without processing
+ * anything again.
+ */
+class BuildMatrix {
+    private final List<String> mFileNames = new ArrayList<>();
+    private final List<BitSet> mMethods = new ArrayList<>();
+    private final List<BitSet> mClasses = new ArrayList<>();
+
+    /**
+     * Where a signature first and last appears.
+     */
+    static class History {
+        // Signatures that are missing from some input, sorted.
+        final int[] ids;
+        // The first and last input each one appears in.
+        final int[] firstSeen;
+        final int[] lastSeen;
+
+        History(int[] ids, int[] firstSeen, int[] lastSeen) {
+            this.ids = ids;
+            this.firstSeen = firstSeen;
+            this.lastSeen = lastSeen;
+        }
+    }
+
+    /**
+     * Adds the next input.
+     *
+     * @param methodIds the ids of its methods.
+     * @param classIds  the ids of its classes.
+     */
+    void add(String fileName, int[] methodIds, int[] classIds) {
+        mFileNames.add(fileName);
+        mMethods.add(toBitSet(methodIds));
+        mClasses.add(toBitSet(classIds));
+    }
+
+    int size() {
+        return mFileNames.size();
+    }
+
+    String fileName(int input) {
+        return mFileNames.get(input);
+    }
+
+    /**
+     * Returns the ids of the methods, or classes, that input {@code a} has
+     * and input {@code b} doesn't.
+     */
+    int[] subtract(boolean methods, int a, int b) {
+        List<BitSet> sets = methods ? mMethods : mClasses;
+        BitSet difference = (BitSet) sets.get(a).clone();
+        difference.andNot(sets.get(b));
+        return difference.stream().toArray();
+    }
+
+    /**
+     * Returns the first and last input of every method, or class, that
+     * isn't in all of them.
+     */
+    History history(boolean methods) {
+        List<BitSet> sets = methods ? mMethods : mClasses;
+        BitSet any = new BitSet();
+        BitSet all = null;
+        for (BitSet set : sets) {
+            any.or(set);
+            if (all == null) {
+                all = (BitSet) set.clone();
+            } else {
+                all.and(set);
+            }
+        }
+        BitSet changed = any;
+        if (all != null) {
+            changed.andNot(all);
+        }
+
+        int[] ids = changed.stream().toArray();
+        int[] firstSeen = new int[ids.length];
+        int[] lastSeen = new int[ids.length];
+        // Each pass only visits the signatures not seen yet in that
+        // direction.
+        BitSet unseen = (BitSet) changed.clone();
+        for (int input = 0; input < sets.size(); input++) {
+            BitSet found = (BitSet) sets.get(input).clone();
+            found.and(unseen);
+            unseen.andNot(found);
+            set(ids, firstSeen, found, input);
+        }
+        unseen = (BitSet) changed.clone();
+        for (int input = sets.size() - 1; input >= 0; input--) {
+            BitSet found = (BitSet) sets.get(input).clone();
+            found.and(unseen);
+            unseen.andNot(found);
+            set(ids, lastSeen, found, input);
+        }
+        return new History(ids, firstSeen, lastSeen);
+    }
+
+    /**
+     * Sets {@code values[i]} to {@code value} for each {@code ids[i]} in
+     * the given set.
+     */
+    private static void set(int[] ids, int[] values, BitSet found, int value) {
+        int i = 0;
+        for (int id = found.nextSetBit(0); id >= 0; id = found.nextSetBit(id + 1)) {
+            while (ids[i] != id) {
+                i++;
+            }
+            values[i] = value;
+        }
+    }
+
+    private static BitSet toBitSet(int[] ids) {
+        BitSet set = new BitSet(ids.length == 0 ? 0 : ids[ids.length - 1] + 1);
+        for (int id : ids) {
+            set.set(id);
+        }
+        return set;
+    }
+}
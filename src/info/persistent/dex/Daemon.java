@@ -0,0 +1,366 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.persistent.dex;
+
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+/**
+ * Keeps a JVM running between diffs, so that a hook calling the tool many
+ * times an hour doesn't pay for starting it, warming up the JIT and
+ * reading the same mappings and DEX files again every time.
+ * <p>
+ * The daemon listens on a loopback port ({@code --daemon[=port]}).  A
+ * client ({@code --connect=port}) sends its working directory and command
+ * line; the daemon runs it with a {@link WarmCache} shared by all
+ * requests and sends back the report and anything written to stderr as
+ * they come, then the exit status.  Requests are run one at a time,
+ * since the stderr of a run is the daemon's.
+ * <p>
+ * Since a request can read and write files as the daemon's user, the
+ * daemon writes a random token to a file only that user can read
+ * ({@code ~/.dex-method-counts/daemon-<port>.token}), and drops any
+ * request that doesn't start with it.  A request that doesn't arrive
+ * within {@link #REQUEST_TIMEOUT_MS} is dropped too, so that a client
+ * that connects and sends nothing can't hold up the others.
+ * <p>
+ * A request is a version, the token, the working directory, and the
+ * arguments, each string with {@link DataOutputStream#writeUTF}.  A
+ * response is a series of frames: a type byte, then for stdout and
+ * stderr a byte count and the bytes, or for the exit status just the
+ * status.
+ */
+class Daemon {
+    static final int DEFAULT_PORT = 7351;
+    private static final long DEFAULT_CACHE_SIZE = 512L * 1024 * 1024;
+
+    private static final int VERSION = 2;
+
+    private static final int REQUEST_TIMEOUT_MS = 10000;
+    // More arguments than any command line has.
+    private static final int MAX_ARGS = 65536;
+
+    private static final int FRAME_STDOUT = 'o';
+    private static final int FRAME_STDERR = 'e';
+    private static final int FRAME_EXIT = 'x';
+
+    // The whole command line of a request that stops the daemon.
+    private static final String STOP = "--stop-daemon";
+
+    private final WarmCache mCache;
+    private String mToken;
+
+    private Daemon(WarmCache cache) {
+        mCache = cache;
+    }
+
+    /**
+     * Runs a daemon with the given command line until it is stopped.
+     *
+     * @return the exit status.
+     */
+    static int run(String[] args) {
+        int port = DEFAULT_PORT;
+        long cacheSize = DEFAULT_CACHE_SIZE;
+        try {
+            for (String arg : args) {
+                if (arg.startsWith("--daemon=")) {
+                    port = Integer.parseInt(arg.substring(arg.indexOf('=') + 1));
+                } else if (arg.startsWith("--cache-size=")) {
+                    cacheSize = Main.parseSize(arg.substring(arg.indexOf('=') + 1));
+                } else if (!arg.equals("--daemon")) {
+                    System.err.println("Unknown daemon option '" + arg + "'");
+                    return 2;
+                }
+            }
+        } catch (NumberFormatException nfe) {
+            System.err.println("Bad port " + nfe.getMessage());
+            return 2;
+        } catch (Main.UsageException ue) {
+            return 2;
+        }
+
+        try {
+            new Daemon(new WarmCache(cacheSize)).serve(port);
+            return 0;
+        } catch (IOException ioe) {
+            System.err.println("Failed: " + ioe);
+            return 1;
+        }
+    }
+
+    private void serve(int port) throws IOException {
+        try (ServerSocket server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress())) {
+            File tokenFile = tokenFile(server.getLocalPort());
+            mToken = writeToken(tokenFile);
+            try {
+                System.err.println("Listening on " + server.getLocalSocketAddress());
+                boolean stop = false;
+                while (!stop) {
+                    try (Socket socket = server.accept()) {
+                        socket.setSoTimeout(REQUEST_TIMEOUT_MS);
+                        stop = handle(socket);
+                    } catch (IOException | RuntimeException e) {
+                        System.err.println("Dropped a request: " + e);
+                    }
+                }
+            } finally {
+                tokenFile.delete();
+            }
+        }
+    }
+
+    /**
+     * Returns the file that holds the token of the daemon on a port.
+     */
+    private static File tokenFile(int port) {
+        return new File(new File(System.getProperty("user.home"), ".dex-method-counts"),
+                "daemon-" + port + ".token");
+    }
+
+    /**
+     * Writes a new random token to a file that only this user can read.
+     *
+     * @return the token.
+     */
+    private static String writeToken(File tokenFile) throws IOException {
+        byte[] bytes = new byte[32];
+        new SecureRandom().nextBytes(bytes);
+        String token = Util.toHex(bytes);
+
+        Path dir = tokenFile.getParentFile().toPath();
+        Path path = tokenFile.toPath();
+        Files.deleteIfExists(path);
+        if (FileSystems.getDefault().supportedFileAttributeViews().contains("posix")) {
+            if (!Files.isDirectory(dir)) {
+                Files.createDirectories(dir,
+                        PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rwx------")));
+            }
+            // Created unreadable by others before the token is in it.
+            Files.createFile(path,
+                    PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+        } else {
+            Files.createDirectories(dir);
+            Files.createFile(path);
+            File file = path.toFile();
+            file.setReadable(false, false);
+            file.setReadable(true, true);
+        }
+        Files.write(path, token.getBytes(StandardCharsets.US_ASCII));
+        return token;
+    }
+
+    /**
+     * Returns the token of the daemon on a port, or null if it can't be
+     * read.
+     */
+    private static String readToken(int port) {
+        try {
+            return new String(Files.readAllBytes(tokenFile(port).toPath()), StandardCharsets.US_ASCII).trim();
+        } catch (IOException ioe) {
+            return null;
+        }
+    }
+
+    /**
+     * Runs one request.
+     *
+     * @return whether it was to stop.
+     */
+    private boolean handle(Socket socket) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 65536));
+        if (in.readInt() != VERSION) {
+            throw new IOException("unknown client version");
+        }
+        if (!MessageDigest.isEqual(in.readUTF().getBytes(StandardCharsets.UTF_8),
+                mToken.getBytes(StandardCharsets.UTF_8))) {
+            throw new IOException("wrong token");
+        }
+        File workingDir = new File(in.readUTF());
+        int argCount = in.readInt();
+        if (argCount < 0 || argCount > MAX_ARGS) {
+            throw new IOException("bad argument count " + argCount);
+        }
+        String[] args = new String[argCount];
+        for (int i = 0; i < args.length; i++) {
+            args[i] = in.readUTF();
+        }
+        // The run may take a while without the client sending anything.
+        socket.setSoTimeout(0);
+
+        if (args.length == 1 && args[0].equals(STOP)) {
+            out.writeByte(FRAME_EXIT);
+            out.writeInt(0);
+            out.flush();
+            return true;
+        }
+
+        PrintStream err = new PrintStream(new FrameOutputStream(out, FRAME_STDERR), true);
+        PrintStream daemonErr = System.err;
+        System.setErr(err);
+        int status;
+        try {
+            status = new Main(mCache, workingDir).run(args, new FrameOutputStream(out, FRAME_STDOUT));
+        } catch (RuntimeException re) {
+            // A bug shouldn't take the daemon down with it.
+            re.printStackTrace();
+            status = 1;
+        } catch (OutOfMemoryError oome) {
+            // Nor should an input too big for the heap.  The cache may be
+            // what filled it, so it starts over too.
+            mCache.clear();
+            System.err.println("Out of memory: " + oome.getMessage());
+            status = 1;
+        } catch (StackOverflowError soe) {
+            System.err.println("Stack overflow: " + soe);
+            status = 1;
+        } finally {
+            err.flush();
+            System.setErr(daemonErr);
+        }
+        synchronized (out) {
+            out.writeByte(FRAME_EXIT);
+            out.writeInt(status);
+            out.flush();
+        }
+        return false;
+    }
+
+    /**
+     * Has the daemon on the port given by the first argument
+     * ({@code --connect=port}) run the rest of the command line, as if it
+     * were run here.  If there is no daemon, runs it in this JVM instead.
+     *
+     * @return the exit status.
+     */
+    static int connect(String[] commandLine) {
+        int port;
+        try {
+            port = Integer.parseInt(commandLine[0].substring(commandLine[0].indexOf('=') + 1));
+        } catch (NumberFormatException nfe) {
+            System.err.println("Bad port '" + commandLine[0] + "'");
+            return 2;
+        }
+        String[] args = Arrays.copyOfRange(commandLine, 1, commandLine.length);
+
+        Socket socket;
+        try {
+            socket = new Socket(InetAddress.getLoopbackAddress(), port);
+        } catch (IOException ioe) {
+            if (args.length == 1 && args[0].equals(STOP)) {
+                System.err.println("No daemon on port " + port);
+                return 1;
+            }
+            return new Main().run(args, new FileOutputStream(FileDescriptor.out));
+        }
+
+        try {
+            String token = readToken(port);
+            if (token == null) {
+                System.err.println("Failed: can't read the token of the daemon on port " + port +
+                        " from " + tokenFile(port));
+                return 1;
+            }
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            out.writeInt(VERSION);
+            out.writeUTF(token);
+            out.writeUTF(new File("").getAbsolutePath());
+            out.writeInt(args.length);
+            for (String arg : args) {
+                out.writeUTF(arg);
+            }
+            out.flush();
+
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 65536));
+            OutputStream stdout = new FileOutputStream(FileDescriptor.out);
+            byte[] buffer = new byte[8192];
+            while (true) {
+                int type = in.readByte();
+                if (type == FRAME_EXIT) {
+                    return in.readInt();
+                }
+                int length = in.readInt();
+                if (buffer.length < length) {
+                    buffer = new byte[length];
+                }
+                in.readFully(buffer, 0, length);
+                if (type == FRAME_STDOUT) {
+                    stdout.write(buffer, 0, length);
+                } else {
+                    System.err.write(buffer, 0, length);
+                    System.err.flush();
+                }
+            }
+        } catch (IOException ioe) {
+            System.err.println("Failed: lost the daemon on port " + port + ": " + ioe);
+            return 1;
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /**
+     * Sends everything written to it to the client as frames of one type.
+     * Closing it only flushes, as the socket is the daemon's to close.
+     */
+    private static class FrameOutputStream extends OutputStream {
+        private final DataOutputStream mOut;
+        private final int mType;
+
+        FrameOutputStream(DataOutputStream out, int type) {
+            mOut = out;
+            mType = type;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return;
+            }
+            synchronized (mOut) {
+                mOut.writeByte(mType);
+                mOut.writeInt(len);
+                mOut.write(b, off, len);
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            synchronized (mOut) {
+                mOut.flush();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+    }
+}
@@ -0,0 +1,194 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.persistent.dex;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Set;
+
+/**
+ * Maps obfuscated class and method names back to the originals, using a
+ * ProGuard/R8 mapping file.
+ * <p>
+ * This gives the same results as running the formatted signatures through
+ * ReTrace with a "%t %c\.%m\(%a\)" pattern, but looks the pieces up
+ * directly instead of matching and re-formatting every string.  Once
+ * loaded it is only read, so it can be shared between threads.
+ */
+class Deobfuscator {
+    private final MappingIndex mIndex;
+
+    Deobfuscator(MappingIndex index) {
+        mIndex = index;
+    }
+
+    /**
+     * Reads the given mapping file, or its cached index.
+     *
+     * @param mappingHash the SHA-1 of the mapping file if already known, or
+     *                    null.
+     * @param cacheDir    where mapping indices are cached, or null.
+     * @param threads     how many threads to parse the mapping file with.
+     */
+    static Deobfuscator load(File mappingFile, String mappingHash, File cacheDir, int threads)
+            throws IOException {
+        return new Deobfuscator(MappingIndex.load(mappingFile, mappingHash, cacheDir, threads));
+    }
+
+    /**
+     * Returns the original name of a dotted class name, or the name itself
+     * if it wasn't obfuscated.
+     */
+    String originalClassName(String className) {
+        String originalClassName = mIndex.originalClassName(className);
+
+        return originalClassName != null ?
+                originalClassName :
+                className;
+    }
+
+    /**
+     * Adds the original signature(s) of a formatted method to the given set.
+     * An ambiguous method yields one line per candidate, with the part each
+     * shares with the previous one blanked out, as ReTrace prints them.
+     *
+     * @param returnType the formatted return type.
+     * @param className  the dotted declaring class name.
+     * @param methodName the method name.
+     * @param arguments  the formatted argument list, separated by ", ".
+     */
+    void addOriginalMethods(String returnType, String className, String methodName,
+                            String arguments, Set<String> out) {
+        String originalClassName = originalClassName(className);
+
+        int ownerId = mIndex.findString(originalClassName);
+        int nameId = ownerId < 0 ? -1 : mIndex.findString(methodName);
+        int first = nameId < 0 ? -1 : mIndex.findMethods(ownerId, nameId);
+        if (first >= 0) {
+            String originalType = originalType(returnType);
+            String originalArguments = originalArguments(arguments);
+
+            String previousLine = null;
+            for (int i = first; i < mIndex.methodCount() &&
+                    mIndex.methodOwner(i) == ownerId && mIndex.methodName(i) == nameId; i++) {
+                if (originalType.equals(mIndex.methodOriginalType(i)) &&
+                        originalArguments.equals(mIndex.methodOriginalArguments(i))) {
+                    String line = mIndex.methodOriginalType(i) + " " + mIndex.methodOriginalClass(i) + "." +
+                            mIndex.methodOriginalName(i) + "(" + mIndex.methodOriginalArguments(i) + ")";
+
+                    String trimmedLine = previousLine != null ? trim(line, previousLine) : line;
+                    if (trimmedLine != null) {
+                        out.add(trimmedLine);
+                    }
+
+                    previousLine = line;
+                }
+            }
+            if (previousLine != null) {
+                return;
+            }
+        }
+
+        out.add(returnType + " " + originalClassName + "." + methodName + "(" + arguments + ")");
+    }
+
+    /**
+     * Returns the original argument types, separated by ",".
+     */
+    private String originalArguments(String obfuscatedArguments) {
+        StringBuilder originalArguments = new StringBuilder();
+
+        int startIndex = 0;
+        while (true) {
+            int endIndex = obfuscatedArguments.indexOf(',', startIndex);
+            if (endIndex < 0) {
+                break;
+            }
+
+            originalArguments.append(originalType(obfuscatedArguments.substring(startIndex, endIndex).trim())).append(',');
+
+            startIndex = endIndex + 1;
+        }
+
+        originalArguments.append(originalType(obfuscatedArguments.substring(startIndex).trim()));
+
+        return originalArguments.toString();
+    }
+
+    /**
+     * Returns the original type.
+     */
+    private String originalType(String obfuscatedType) {
+        int index = obfuscatedType.indexOf('[');
+
+        return index >= 0 ?
+                originalClassName(obfuscatedType.substring(0, index)) + obfuscatedType.substring(index) :
+                originalClassName(obfuscatedType);
+    }
+
+    /**
+     * Returns the first given string, with any leading characters that it has
+     * in common with the second string replaced by spaces.
+     */
+    private static String trim(String string1, String string2) {
+        StringBuilder line = new StringBuilder(string1);
+
+        // Find the common part.
+        int trimEnd = firstNonCommonIndex(string1, string2);
+        if (trimEnd == string1.length()) {
+            return null;
+        }
+
+        // Don't clear the last identifier characters.
+        trimEnd = lastNonIdentifierIndex(string1, trimEnd) + 1;
+
+        // Clear the common characters.
+        for (int index = 0; index < trimEnd; index++) {
+            if (!Character.isWhitespace(string1.charAt(index))) {
+                line.setCharAt(index, ' ');
+            }
+        }
+
+        return line.toString();
+    }
+
+    /**
+     * Returns the index of the first character that is not the same in both
+     * given strings.
+     */
+    private static int firstNonCommonIndex(String string1, String string2) {
+        int index = 0;
+        while (index < string1.length() &&
+                index < string2.length() &&
+                string1.charAt(index) == string2.charAt(index)) {
+            index++;
+        }
+
+        return index;
+    }
+
+    /**
+     * Returns the index of the last character that is not an identifier
+     * character in the given string, at or before the given index.
+     */
+    private static int lastNonIdentifierIndex(String line, int index) {
+        while (index >= 0 &&
+                Character.isJavaIdentifierPart(line.charAt(index))) {
+            index--;
+        }
+
+        return index;
+    }
+}
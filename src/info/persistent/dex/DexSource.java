@@ -0,0 +1,441 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.persistent.dex;
+
+import vendor.com.android.dexdeps.DexData;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.Semaphore;
+import java.util.regex.Pattern;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipFile;
+
+/**
+ * Reads the DEX images out of an input file, which could be a .dex or a
+ * .jar/.apk with one or more classes*.dex inside.
+ * <p>
+ * Nothing is written to disk for entries that fit in memory: STORED entries
+ * are mapped straight out of the archive, and DEFLATED entries are inflated
+ * into a heap buffer that is dropped once the entry is handled.  The bytes
+ * of those buffers come out of a budget that all DexSources of a run share,
+ * so an entry is only spilled to a temporary file when it doesn't fit in
+ * what's left of the budget.
+ */
+class DexSource {
+
+    /**
+     * Receives a loaded DEX image.  The DexData is only valid
+     * for the duration of the call; its backing buffer is released afterward.
+     */
+    interface Handler {
+        void handle(DexData dexData) throws IOException;
+    }
+
+    private static final int ZIP_LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    private static final int ZIP_CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+    private static final int ZIP_END_OF_CENTRAL_DIR_SIGNATURE = 0x06054b50;
+    private static final int ZIP_END_OF_CENTRAL_DIR_SIZE = 22;
+    private static final int ZIP_MAX_COMMENT_SIZE = 0xffff;
+
+    private static final Pattern DEX_ENTRY_NAME = Pattern.compile("classes.*\\.dex");
+
+    private static final int MIN_BUFFER_SIZE = 32768;
+
+    private final long mBufferLimit;
+    private final Semaphore mBufferBudget;
+    private final PhaseStats mStats;
+
+    /**
+     * @param bufferLimit  the bytes of inflated DEX images that may be held
+     *                     in memory at once, by all DexSources together.
+     * @param bufferBudget what's left of that limit, shared by all the
+     *                     DexSources, with one permit per byte; entries
+     *                     that don't fit go through a temp file.
+     * @param stats        where reading and loading are timed.
+     */
+    DexSource(long bufferLimit, Semaphore bufferBudget, PhaseStats stats) {
+        mBufferLimit = bufferLimit;
+        mBufferBudget = bufferBudget;
+        mStats = stats;
+    }
+
+    /**
+     * Returns the names of the classes*.dex entries in the given file, in
+     * archive order, or an empty list if it isn't a zip with DEX entries
+     * (in which case it's presumably a bare .dex file).
+     */
+    static List<String> listDexEntries(String fileName) throws IOException {
+        ZipFile zipFile;
+
+        // Try it as a zip file.
+        try {
+            zipFile = new ZipFile(fileName);
+        } catch (FileNotFoundException fnfe) {
+            // not found, no point in retrying as non-zip.
+            System.err.println("Unable to open '" + fileName + "': " +
+                    fnfe.getMessage());
+            throw fnfe;
+        } catch (ZipException ze) {
+            // not a zip
+            return Collections.emptyList();
+        }
+
+        try {
+            List<String> entryNames = new ArrayList<>();
+            for (ZipEntry entry : Collections.list(zipFile.entries())) {
+                if (DEX_ENTRY_NAME.matcher(entry.getName()).matches()) {
+                    entryNames.add(entry.getName());
+                }
+            }
+            return entryNames;
+        } finally {
+            zipFile.close();
+        }
+    }
+
+    /**
+     * Loads one DEX image and passes it to the handler.
+     *
+     * @param entryName a name returned by {@link #listDexEntries}, or null
+     *                  if the file itself is the DEX.
+     */
+    void read(String fileName, String entryName, Handler handler) throws IOException {
+        PhaseStats.Timer timer = mStats.start("read", fileName, entryName);
+        if (entryName == null) {
+            RandomAccessFile dexFile = new RandomAccessFile(new File(fileName), "r");
+            try {
+                load(new DexData(dexFile), dexFile.length(), timer, handler);
+            } finally {
+                dexFile.close();
+            }
+            return;
+        }
+
+        ZipFile zipFile = new ZipFile(fileName);
+        try {
+            ZipEntry entry = zipFile.getEntry(entryName);
+            if (entry == null) {
+                throw new FileNotFoundException(entryName + " in " + fileName);
+            }
+
+            if (entry.getMethod() == ZipEntry.STORED) {
+                RandomAccessFile archive = new RandomAccessFile(fileName, "r");
+                try {
+                    FileChannel channel = archive.getChannel();
+                    Long dataOffset = readStoredDataOffsets(channel).get(entryName);
+                    if (dataOffset != null) {
+                        ByteBuffer data = channel.map(
+                                FileChannel.MapMode.READ_ONLY, dataOffset, entry.getSize());
+                        load(new DexData(data), entry.getSize(), timer, handler);
+                        return;
+                    }
+                } finally {
+                    archive.close();
+                }
+            }
+
+            readEntry(zipFile, entry, timer, handler);
+        } finally {
+            zipFile.close();
+        }
+    }
+
+    /**
+     * Loads just the header of a DEX image, reading (or inflating) no more
+     * than its first {@link DexData#HEADER_SIZE} bytes.
+     *
+     * @param entryName a name returned by {@link #listDexEntries}, or null
+     *                  if the file itself is the DEX.
+     */
+    static DexData readHeader(String fileName, String entryName) throws IOException {
+        if (entryName == null) {
+            return readHeader(new FileInputStream(fileName));
+        }
+
+        ZipFile zipFile = new ZipFile(fileName);
+        try {
+            ZipEntry entry = zipFile.getEntry(entryName);
+            if (entry == null) {
+                throw new FileNotFoundException(entryName + " in " + fileName);
+            }
+            return readHeader(zipFile.getInputStream(entry));
+        } finally {
+            zipFile.close();
+        }
+    }
+
+    /**
+     * Loads just the headers of all DEX images in a file, like
+     * {@link #readHeader} for each of {@link #listDexEntries}, but opening
+     * the file only once.
+     *
+     * @return the headers by entry name, in archive order; the only entry
+     * is null if the file itself is the DEX.
+     */
+    static Map<String, DexData> readHeaders(String fileName) throws IOException {
+        Map<String, DexData> headers = new LinkedHashMap<>();
+        ZipFile zipFile;
+
+        // Try it as a zip file.
+        try {
+            zipFile = new ZipFile(fileName);
+        } catch (FileNotFoundException fnfe) {
+            // not found, no point in retrying as non-zip.
+            System.err.println("Unable to open '" + fileName + "': " +
+                    fnfe.getMessage());
+            throw fnfe;
+        } catch (ZipException ze) {
+            zipFile = null;
+        }
+
+        if (zipFile != null) {
+            try {
+                for (ZipEntry entry : Collections.list(zipFile.entries())) {
+                    if (DEX_ENTRY_NAME.matcher(entry.getName()).matches()) {
+                        headers.put(entry.getName(), readHeader(zipFile.getInputStream(entry)));
+                    }
+                }
+            } finally {
+                zipFile.close();
+            }
+        }
+
+        if (headers.isEmpty()) {
+            // not a zip with DEX entries, so it's the DEX itself
+            headers.put(null, readHeader(fileName, null));
+        }
+        return headers;
+    }
+
+    /**
+     * Loads a DEX header from the first {@link DexData#HEADER_SIZE} bytes
+     * of a stream, and closes it.
+     */
+    private static DexData readHeader(InputStream in) throws IOException {
+        byte[] header = new byte[DexData.HEADER_SIZE];
+        int length;
+        try {
+            length = readFully(in, header);
+        } finally {
+            in.close();
+        }
+
+        DexData dexData = new DexData(ByteBuffer.wrap(header, 0, length));
+        dexData.loadHeader();
+        return dexData;
+    }
+
+    /**
+     * Reads until the buffer is full or the stream ends, and returns the
+     * number of bytes read.
+     */
+    private static int readFully(InputStream in, byte[] buffer) throws IOException {
+        int length = 0;
+        while (length < buffer.length) {
+            int actual = in.read(buffer, length, buffer.length - length);
+            if (actual == -1)
+                break;
+            length += actual;
+        }
+        return length;
+    }
+
+    /**
+     * Inflates a compressed entry into a buffer taken from the budget, or
+     * into a temp file if the budget can't cover it.
+     * <p>
+     * An entry of known size waits for the budget to free up, since no
+     * other entry can ever need more than the whole of it; one of unknown
+     * size only grows its buffer with what's free right away, as waiting
+     * while holding part of the budget could deadlock.
+     */
+    private void readEntry(ZipFile zipFile, ZipEntry entry, PhaseStats.Timer timer,
+                           Handler handler) throws IOException {
+        long size = entry.getSize();
+        if (size > mBufferLimit) {
+            readEntryViaTempFile(zipFile.getInputStream(entry), null, 0, timer, handler);
+            return;
+        }
+
+        int acquired = size >= 0 ? (int) size : (int) Math.min(MIN_BUFFER_SIZE, mBufferLimit);
+        acquireBudget(acquired);
+        try {
+            byte[] buffer = new byte[acquired];
+            InputStream zis = zipFile.getInputStream(entry);
+            try {
+                int length = 0;
+                while (size < 0 || length < size) {
+                    if (length == buffer.length) {
+                        int grown = (int) Math.min(buffer.length * 2L, mBufferLimit);
+                        if (grown <= length || !mBufferBudget.tryAcquire(grown - acquired)) {
+                            // Size wasn't known up front and it didn't fit.
+                            readEntryViaTempFile(zis, buffer, length, timer, handler);
+                            return;
+                        }
+                        acquired = grown;
+                        buffer = Arrays.copyOf(buffer, grown);
+                    }
+                    int actual = zis.read(buffer, length, buffer.length - length);
+                    if (actual == -1)
+                        break;
+                    length += actual;
+                }
+
+                load(new DexData(ByteBuffer.wrap(buffer, 0, length)), length, timer, handler);
+            } finally {
+                zis.close();
+            }
+        } finally {
+            mBufferBudget.release(acquired);
+        }
+    }
+
+    /**
+     * Takes bytes out of the budget, waiting for other threads to return
+     * them if need be.
+     */
+    private void acquireBudget(int bytes) throws IOException {
+        try {
+            mBufferBudget.acquire(bytes);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+    }
+
+    /**
+     * Copies an entry to a temp file and maps it.  Any bytes that were
+     * already inflated into {@code head} are written first.
+     */
+    private void readEntryViaTempFile(InputStream zis, byte[] head, int headLength,
+                                      PhaseStats.Timer timer, Handler handler) throws IOException {
+        // Create a temp file to hold the DEX data, open it, and delete it
+        // to ensure it doesn't hang around if we fail.
+        File tempFile = File.createTempFile("dexdeps", ".dex");
+        RandomAccessFile dexFile = new RandomAccessFile(tempFile, "rw");
+        tempFile.delete();
+
+        try {
+            if (head != null) {
+                dexFile.write(head, 0, headLength);
+            }
+
+            // Copy all data from input stream to output file.
+            byte copyBuf[] = new byte[32768];
+            int actual;
+
+            while (true) {
+                actual = zis.read(copyBuf);
+                if (actual == -1)
+                    break;
+
+                dexFile.write(copyBuf, 0, actual);
+            }
+
+            load(new DexData(dexFile), dexFile.length(), timer, handler);
+        } finally {
+            zis.close();
+            dexFile.close();
+        }
+    }
+
+    /**
+     * Stops the read timer, and loads the DEX as a phase of its own.
+     *
+     * @param size the size of the DEX image.
+     */
+    private void load(DexData dexData, long size, PhaseStats.Timer readTimer,
+                      Handler handler) throws IOException {
+        readTimer.stop(size);
+        PhaseStats.Timer timer = mStats.start("load", readTimer.getFileName(), readTimer.getEntryName());
+        dexData.load();
+        timer.stop(dexData.getMethodCount());
+        handler.handle(dexData);
+    }
+
+    /*
+     * =======================================================================
+     *      Zip layout
+     * =======================================================================
+     */
+
+    /**
+     * Walks the archive's central directory and returns the file offset of
+     * the data of each STORED entry.  java.util.zip doesn't expose these.
+     * Zip64 archives aren't handled; their entries just get copied.
+     */
+    private static Map<String, Long> readStoredDataOffsets(FileChannel channel) throws IOException {
+        Map<String, Long> offsets = new HashMap<>();
+
+        long fileSize = channel.size();
+        int tailSize = (int) Math.min(fileSize, ZIP_END_OF_CENTRAL_DIR_SIZE + ZIP_MAX_COMMENT_SIZE);
+        ByteBuffer tail = channel.map(FileChannel.MapMode.READ_ONLY, fileSize - tailSize, tailSize)
+                .order(ByteOrder.LITTLE_ENDIAN);
+
+        int eocd = tailSize - ZIP_END_OF_CENTRAL_DIR_SIZE;
+        while (eocd >= 0 && tail.getInt(eocd) != ZIP_END_OF_CENTRAL_DIR_SIGNATURE) {
+            eocd--;
+        }
+        if (eocd < 0) {
+            return offsets;
+        }
+        long dirSize = tail.getInt(eocd + 12) & 0xffffffffL;
+        long dirOffset = tail.getInt(eocd + 16) & 0xffffffffL;
+        if (dirOffset == 0xffffffffL || dirOffset + dirSize > fileSize) {
+            return offsets;
+        }
+
+        ByteBuffer dir = channel.map(FileChannel.MapMode.READ_ONLY, dirOffset, dirSize)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        ByteBuffer localHeader = ByteBuffer.allocate(30).order(ByteOrder.LITTLE_ENDIAN);
+        int pos = 0;
+        while (pos + 46 <= dirSize && dir.getInt(pos) == ZIP_CENTRAL_HEADER_SIGNATURE) {
+            int method = dir.getShort(pos + 10) & 0xffff;
+            long compressedSize = dir.getInt(pos + 20) & 0xffffffffL;
+            int nameLength = dir.getShort(pos + 28) & 0xffff;
+            int extraLength = dir.getShort(pos + 30) & 0xffff;
+            int commentLength = dir.getShort(pos + 32) & 0xffff;
+            long headerOffset = dir.getInt(pos + 42) & 0xffffffffL;
+
+            if (method == ZipEntry.STORED && compressedSize != 0xffffffffL &&
+                    headerOffset != 0xffffffffL) {
+                byte[] name = new byte[nameLength];
+                dir.position(pos + 46);
+                dir.get(name);
+
+                localHeader.clear();
+                channel.read(localHeader, headerOffset);
+                if (localHeader.getInt(0) == ZIP_LOCAL_HEADER_SIGNATURE) {
+                    long dataOffset = headerOffset + 30 +
+                            (localHeader.getShort(26) & 0xffff) +
+                            (localHeader.getShort(28) & 0xffff);
+                    if (dataOffset + compressedSize <= fileSize) {
+                        offsets.put(new String(name, StandardCharsets.UTF_8), dataOffset);
+                    }
+                }
+            }
+
+            pos += 46 + nameLength + extraLength + commentLength;
+        }
+
+        return offsets;
+    }
+}
@@ -0,0 +1,334 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.persistent.dex;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Sorts and de-duplicates a stream of signatures in bounded memory.
+ * Strings are collected until they would take more than the budget, then
+ * sorted and written out as a run in a temp file.  Runs are combined with
+ * a k-way merge, and two merged runs are diffed the same way, so only one
+ * string per run is in memory at a time.  A merge reads at most
+ * {@link #MAX_FAN_IN} runs at once, fewer if their read buffers wouldn't
+ * fit in the budget, and takes several passes over more runs than that,
+ * so neither the open files nor the buffers grow with the input.
+ * <p>
+ * A run file is just the strings in sorted order, each as a byte count
+ * and its UTF-8 bytes, in a directory the caller deletes when it's done.
+ * Run files are deleted as soon as they are merged or diffed, or whatever
+ * was being done with them fails, rather than at exit, which a daemon
+ * never reaches.  Not thread-safe; use one instance per producer.
+ */
+class ExternalSort {
+    // Rough heap cost of a buffered String beyond its characters: the
+    // object, its array and the list slot.
+    private static final int STRING_OVERHEAD = 56;
+
+    private static final int IO_BUFFER_SIZE = 8192;
+
+    // The most runs merged in one pass.
+    static final int MAX_FAN_IN = 64;
+    // Rough heap cost of an open run: its read buffer, its string buffer
+    // and its current string.
+    private static final int READER_SIZE = IO_BUFFER_SIZE + 256 + STRING_OVERHEAD;
+
+    private final long mBudget;
+    private final File mDir;
+    private final List<String> mBuffer = new ArrayList<>();
+    private long mBufferSize;
+    private final List<Run> mRuns = new ArrayList<>();
+
+    /**
+     * A temp file of sorted, distinct strings.
+     */
+    static class Run {
+        final File file;
+        final int count;
+
+        Run(File file, int count) {
+            this.file = file;
+            this.count = count;
+        }
+
+        RunReader open() throws IOException {
+            return new RunReader(file);
+        }
+
+        void delete() {
+            file.delete();
+        }
+    }
+
+    /**
+     * Reads a run back in order.
+     */
+    static class RunReader implements Closeable {
+        private final DataInputStream mIn;
+        private byte[] mBytes = new byte[256];
+
+        RunReader(File file) throws IOException {
+            mIn = new DataInputStream(new BufferedInputStream(new FileInputStream(file), IO_BUFFER_SIZE));
+        }
+
+        /**
+         * Returns the next string, or null at the end.
+         */
+        String next() throws IOException {
+            int length;
+            try {
+                length = mIn.readInt();
+            } catch (EOFException eofe) {
+                return null;
+            }
+            if (length > mBytes.length) {
+                mBytes = new byte[Math.max(length, mBytes.length * 2)];
+            }
+            mIn.readFully(mBytes, 0, length);
+            return new String(mBytes, 0, length, StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public void close() throws IOException {
+            mIn.close();
+        }
+    }
+
+    /**
+     * @param budget how many bytes of strings to hold before spilling.
+     * @param dir    where to write the runs.
+     */
+    ExternalSort(long budget, File dir) {
+        mBudget = budget;
+        mDir = dir;
+    }
+
+    void add(String string) throws IOException {
+        mBuffer.add(string);
+        mBufferSize += STRING_OVERHEAD + 2L * string.length();
+        if (mBufferSize >= mBudget) {
+            spill();
+        }
+    }
+
+    void addAll(Collection<String> strings) throws IOException {
+        for (String string : strings) {
+            add(string);
+        }
+    }
+
+    /**
+     * Writes out whatever is still buffered and returns all the runs.
+     */
+    List<Run> finish() throws IOException {
+        if (!mBuffer.isEmpty() || mRuns.isEmpty()) {
+            spill();
+        }
+        return mRuns;
+    }
+
+    /**
+     * Deletes the runs written so far, when they won't be finished.
+     */
+    void discard() {
+        delete(mRuns);
+        mRuns.clear();
+        mBuffer.clear();
+        mBufferSize = 0;
+    }
+
+    private void spill() throws IOException {
+        Collections.sort(mBuffer);
+        RunWriter writer = new RunWriter(mDir);
+        try {
+            String previous = null;
+            for (String string : mBuffer) {
+                if (!string.equals(previous)) {
+                    writer.write(string);
+                    previous = string;
+                }
+            }
+            mRuns.add(writer.close());
+        } finally {
+            writer.discard();
+        }
+        mBuffer.clear();
+        mBufferSize = 0;
+    }
+
+    /**
+     * Merges runs into one, dropping duplicates, next to the first of them.
+     * The given runs are deleted, even if the merge fails.
+     *
+     * @param budget how many bytes the read and write buffers may take.
+     */
+    static Run merge(List<Run> runs, long budget) throws IOException {
+        // One buffer is the writer's.
+        int fanIn = (int) Math.max(2, Math.min(MAX_FAN_IN, budget / READER_SIZE - 1));
+        List<Run> merged = new ArrayList<>();
+        try {
+            while (runs.size() > fanIn) {
+                for (int i = 0; i < runs.size(); i += fanIn) {
+                    merged.add(mergePass(runs.subList(i, Math.min(i + fanIn, runs.size()))));
+                }
+                runs = merged;
+                merged = new ArrayList<>();
+            }
+            return mergePass(runs);
+        } catch (IOException | RuntimeException e) {
+            delete(runs);
+            delete(merged);
+            throw e;
+        }
+    }
+
+    /**
+     * Merges a few runs into one, with all of them open at once, and
+     * deletes them once it's written.
+     */
+    private static Run mergePass(List<Run> runs) throws IOException {
+        if (runs.size() == 1) {
+            return runs.get(0);
+        }
+
+        List<RunReader> readers = new ArrayList<>();
+        RunWriter writer = new RunWriter(runs.get(0).file.getParentFile());
+        Run merged;
+        try {
+            // Each entry is the current string of one reader and its index.
+            PriorityQueue<Map.Entry<String, Integer>> heads =
+                    new PriorityQueue<>(Math.max(1, runs.size()), Map.Entry.comparingByKey());
+            for (Run run : runs) {
+                RunReader reader = run.open();
+                readers.add(reader);
+                String head = reader.next();
+                if (head != null) {
+                    heads.add(new AbstractMap.SimpleImmutableEntry<>(head, readers.size() - 1));
+                }
+            }
+
+            String previous = null;
+            while (!heads.isEmpty()) {
+                Map.Entry<String, Integer> head = heads.poll();
+                if (!head.getKey().equals(previous)) {
+                    writer.write(head.getKey());
+                    previous = head.getKey();
+                }
+                String next = readers.get(head.getValue()).next();
+                if (next != null) {
+                    heads.add(new AbstractMap.SimpleImmutableEntry<>(next, head.getValue()));
+                }
+            }
+            merged = writer.close();
+        } finally {
+            writer.discard();
+            for (RunReader reader : readers) {
+                reader.close();
+            }
+        }
+
+        delete(runs);
+        return merged;
+    }
+
+    /**
+     * Returns a new run, next to {@code a}, of the strings that are in
+     * {@code a} but not in {@code b}.
+     */
+    static Run subtract(Run a, Run b) throws IOException {
+        RunWriter writer = new RunWriter(a.file.getParentFile());
+        RunReader readerA = null;
+        RunReader readerB = null;
+        try {
+            readerA = a.open();
+            readerB = b.open();
+            String stringB = readerB.next();
+            for (String stringA = readerA.next(); stringA != null; stringA = readerA.next()) {
+                while (stringB != null && stringB.compareTo(stringA) < 0) {
+                    stringB = readerB.next();
+                }
+                if (!stringA.equals(stringB)) {
+                    writer.write(stringA);
+                }
+            }
+            return writer.close();
+        } finally {
+            writer.discard();
+            if (readerA != null) {
+                readerA.close();
+            }
+            if (readerB != null) {
+                readerB.close();
+            }
+        }
+    }
+
+    private static void delete(List<Run> runs) {
+        for (Run run : runs) {
+            run.delete();
+        }
+    }
+
+    /**
+     * Writes a new run to a temp file, which is deleted again unless the
+     * run is closed.
+     */
+    private static class RunWriter {
+        private final File mFile;
+        private final DataOutputStream mOut;
+        private int mCount;
+        private boolean mClosed;
+
+        RunWriter(File dir) throws IOException {
+            mFile = File.createTempFile("dexsort", ".run", dir);
+            try {
+                mOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(mFile), IO_BUFFER_SIZE));
+            } catch (IOException ioe) {
+                mFile.delete();
+                throw ioe;
+            }
+        }
+
+        void write(String string) throws IOException {
+            byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+            mOut.writeInt(bytes.length);
+            mOut.write(bytes);
+            mCount++;
+        }
+
+        Run close() throws IOException {
+            mOut.close();
+            mClosed = true;
+            return new Run(mFile, mCount);
+        }
+
+        /**
+         * Deletes the file, if the run wasn't closed.
+         */
+        void discard() {
+            if (mClosed) {
+                return;
+            }
+            try {
+                mOut.close();
+            } catch (IOException ignored) {
+                // It's being deleted anyway.
+            }
+            mFile.delete();
+        }
+    }
+}
@@ -15,394 +15,1427 @@
 package info.persistent.dex;
 
 import vendor.com.android.dexdeps.DexData;
+import vendor.com.android.dexdeps.ExternalReferences;
+import vendor.com.android.dexdeps.Output;
 import vendor.com.android.dexdeps.DexDataException;
-import vendor.com.android.dexdeps.MethodRef;
 
 import java.io.*;
+import java.nio.file.Files;
 import java.util.*;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipException;
-import java.util.zip.ZipFile;
+import java.util.concurrent.*;
 
 public class Main {
 
-    private static final String STACK_TRACE_METHOD_EXPRESSION = "%t %c\\.%m\\(%a\\)";
-    private static final String STACK_TRACE_CLASS_EXPRESSION = "%c";
+    private static final long DEFAULT_BUFFER_LIMIT = 256L * 1024 * 1024;
+    // The largest array a JVM reliably allocates.
+    private static final long MAX_BUFFER_LIMIT = Integer.MAX_VALUE - 8;
 
     private String[] mMappingFiles;
+    private long mBufferLimit = DEFAULT_BUFFER_LIMIT;
+    private int mThreads = Runtime.getRuntime().availableProcessors();
+    private File mCacheDir;
+    // If set, signatures are sorted in temp files instead of kept in
+    // memory, holding about this many bytes of them at a time.
+    private long mMemoryBudget;
+    // Where the sorted runs go, with a memory budget; deleted at the end.
+    private File mSortDir;
+    private String mOutputFile;
+    private ReportWriter.Format mFormat = ReportWriter.Format.TEXT;
+    private Compare mCompare = Compare.PREVIOUS;
+    private boolean mHistory;
+    private boolean mHeaderCounts;
+    // The format of --external-refs ("brief", "xml", "tsv" or "json"),
+    // or null.
+    private String mExternalRefs;
+    private boolean mPackageCounts;
+    private int mMaxDepth;
+    private boolean mIncludeClasses;
+    // Set from the options above if package counts were asked for.
+    private PackageTrie.Options mPackageOptions;
+    private String[] mIncludePrefixes;
+    private String[] mExcludePrefixes;
+    // Set from the two above if either was given.
+    private TypeFilter mTypeFilter;
+
+    // Timings of each phase, kept if --stats was given.
+    private PhaseStats mStats = new PhaseStats(false);
+    private boolean mStatsJson;
+
+    // Shared by the worker threads, which inflate DEX images into buffers
+    // of at most mBufferLimit bytes between them; set once the args are in.
+    private DexSource mDexSource;
+
+    // Mapping file name -> its parsed contents, while still needed.
+    private final Map<String, CompletableFuture<Deobfuscator>> mDeobfuscators = new ConcurrentHashMap<>();
+
+    // Mapping file name -> its SHA-1, when there is a cache directory.
+    private final Map<String, CompletableFuture<String>> mMappingHashes = new ConcurrentHashMap<>();
+
+    // Set if there is a cache directory.
+    private SnapshotStore mSnapshots;
+
+    // Kept between the runs of a daemon, or null.
+    private final WarmCache mWarmCache;
+    // Where relative file names are from, or null for the current
+    // directory.
+    private final File mWorkingDir;
+
+    // Shared by all inputs, so their signature sets can be compared by id.
+    private final SignatureDictionary mDictionary = new SignatureDictionary();
+
+    /**
+     * Which inputs to diff.
+     */
+    private enum Compare {
+        // each input against the one before it
+        PREVIOUS,
+        // each input against the first one
+        BASELINE,
+        // every pair of inputs
+        ALL
+    }
+
+    Main() {
+        this(null, null);
+    }
+
+    /**
+     * @param warmCache  what to reuse from and add to, or null.
+     * @param workingDir where relative file names are from, or null for
+     *                   the current directory.
+     */
+    Main(WarmCache warmCache, File workingDir) {
+        mWarmCache = warmCache;
+        mWorkingDir = workingDir;
+    }
 
     public static void main(String[] args) {
-        Main main = new Main();
-        main.run(args);
+        int status;
+        if (args.length > 0 && (args[0].equals("--daemon") || args[0].startsWith("--daemon="))) {
+            status = Daemon.run(args);
+        } else if (args.length > 0 && args[0].startsWith("--connect=")) {
+            status = Daemon.connect(args);
+        } else {
+            Main main = new Main();
+            status = main.run(args, new FileOutputStream(FileDescriptor.out));
+        }
+        if (status != 0) {
+            System.exit(status);
+        }
     }
 
-    void run(String[] args) {
+    /**
+     * Runs with the given command line, writing the report to the given
+     * stream unless there's an --output file.
+     *
+     * @return the exit status.
+     */
+    int run(String[] args, OutputStream out) {
         try {
             String[] inputFileNames = parseArgs(args);
+            mDexSource = new DexSource(mBufferLimit, new Semaphore((int) mBufferLimit), mStats);
+            if (mHeaderCounts) {
+                countHeaders(inputFileNames, out);
+                return 0;
+            }
+            if (mExternalRefs != null) {
+                reportExternalReferences(inputFileNames, out);
+                return 0;
+            }
 //            String[] inputFileNames = new String[]{"old.apk", "new.apk"};
             String[] mappingFileNames = mMappingFiles;
 //            String[] mappingFileNames = new String[]{"old-mapping.txt", "new-mapping.txt"};
 
-            Set<String> oldMethods = new HashSet<>();
-            Set<String> oldClasses = new HashSet<>();
+            int[] oldMethods = new int[0];
+            int[] oldClasses = new int[0];
+            PackageTrie oldPackages = null;
+            // Instead of the ids, with a memory budget.
+            ExternalSort.Run oldMethodRun = null;
+            ExternalSort.Run oldClassRun = null;
             String oldFileName = "";
+            // Every input, if they're compared all at once at the end.
+            BuildMatrix matrix = mCompare == Compare.ALL || mHistory ? new BuildMatrix() : null;
 
-            List<String> collectFileNames = collectFileNames(inputFileNames);
-            for (int i = 0, collectFileNamesSize = collectFileNames.size(); i < collectFileNamesSize; i++) {
-                String fileName = collectFileNames.get(i);
-                System.out.println("Processing " + fileName);
-                System.out.println("file size:" + Util.readableFileSize(new File(fileName).length()));
+            ReportWriter report = mOutputFile != null ?
+                    ReportWriter.open(path(mOutputFile), mFormat) :
+                    new ReportWriter(out, mFormat);
+            ExecutorService executor = Executors.newFixedThreadPool(mThreads);
+            if (mMemoryBudget != 0) {
+                mSortDir = Files.createTempDirectory("dexsort").toFile();
+            }
+            try {
+                // Inputs are processed up to mThreads files ahead of the one
+                // being reported, but always reported in order.
+                List<String> collectFileNames = collectFileNames(inputFileNames);
+                List<CompletableFuture<InputResult>> results = new ArrayList<>();
+                CompletableFuture<InputDexes> dexes = CompletableFuture.completedFuture(new InputDexes());
+                for (int i = 0, collectFileNamesSize = collectFileNames.size(); i < collectFileNamesSize; i++) {
+                    while (results.size() < collectFileNamesSize && results.size() <= i + mThreads) {
+                        int index = results.size();
+                        String mappingFileName = mappingFileNames != null && mappingFileNames.length > index ?
+                                mappingFileNames[index] : null;
+                        String previousMappingFileName = mappingFileNames != null && index > 0 &&
+                                mappingFileNames.length > index - 1 ? mappingFileNames[index - 1] : null;
+                        dexes = processInputFile(collectFileNames.get(index), mappingFileName, dexes,
+                                previousMappingFileName, executor);
+                        results.add(mergeDexResults(collectFileNames.get(index), dexes, executor));
+                    }
 
-                Set<String> newMethods = new HashSet<>();
-                Set<String> newClasses = new HashSet<>();
-                for (RandomAccessFile dexFile : openInputFiles(fileName)) {
-                    DexData dexData = new DexData(dexFile);
-                    dexData.load();
+                    String fileName = collectFileNames.get(i);
+                    report.inputStarted(fileName, new File(path(fileName)).length());
 
-                    processMethods(newMethods, dexData);
-                    processClasses(dexData, newClasses);
+                    InputResult result = await(results.get(i));
+                    results.set(i, null);
+                    if (mappingFileNames != null && mappingFileNames.length > i &&
+                            !Arrays.asList(mappingFileNames).subList(i + 1, mappingFileNames.length)
+                                    .contains(mappingFileNames[i])) {
+                        mDeobfuscators.remove(mappingFileNames[i]);
+                    }
+                    int[] newMethods = result.methodIds;
+                    int[] newClasses = result.classIds;
+
+                    report.inputTotals(result.classCount, result.methodCount);
 
-                    dexFile.close();
-                }
 
-                System.out.println("total classes[" + newClasses.size() + "]");
-                System.out.println("total methods[" + newMethods.size() + "]");
+                    if (mappingFileNames != null && mappingFileNames.length > 0) {
+                        if (mappingFileNames.length > i) {
+                            report.unmapping();
+                        } else {
+                            System.err.println("unmatched mapping file for file[" + fileName + "]");
+                        }
+                    }
+
+                    if (result.packages != null) {
+                        processPackages(oldPackages, result.packages, report);
+                    }
 
+                    if (matrix != null) {
+                        matrix.add(fileName, newMethods, newClasses);
+                    }
+                    PhaseStats.Timer diffTimer = mStats.start("diff", fileName, null);
+                    int diffEntries = 0;
+                    if (result.methodRun != null) {
+                        if (oldClassRun != null && oldClassRun.count != 0) {
+                            report.diffStarted("class", oldFileName, fileName);
+                            diffEntries += processOldAndNewRuns(oldClassRun, result.classRun, report);
+                        }
+                        if (oldMethodRun != null && oldMethodRun.count != 0) {
+                            report.diffStarted("method", oldFileName, fileName);
+                            diffEntries += processOldAndNewRuns(oldMethodRun, result.methodRun, report);
+                        }
+                    } else if (mCompare != Compare.ALL) {
+                        if (oldClasses.length != 0) {
+                            report.diffStarted("class", oldFileName, fileName);
+                            diffEntries += processOldAndNewStringList(oldClasses, newClasses, report);
+                        }
+                        if (oldMethods.length != 0) {
+                            report.diffStarted("method", oldFileName, fileName);
+                            diffEntries += processOldAndNewStringList(oldMethods, newMethods, report);
+                        }
+                    }
+                    diffTimer.stop(diffEntries);
 
-                if (mappingFileNames != null && mappingFileNames.length > 0) {
-                    if (mappingFileNames.length > i) {
-                        System.out.println("unmapping...");
-                        Util.unmapping(mappingFileNames[i], STACK_TRACE_CLASS_EXPRESSION, false, newClasses);
-                        Util.unmapping(mappingFileNames[i], STACK_TRACE_METHOD_EXPRESSION, false, newMethods);
+                    if (mCompare != Compare.BASELINE || i == 0) {
+                        if (result.methodRun != null) {
+                            deleteRuns(oldMethodRun, oldClassRun);
+                            oldMethodRun = result.methodRun;
+                            oldClassRun = result.classRun;
+                        }
+                        oldMethods = newMethods;
+                        oldClasses = newClasses;
+                        oldPackages = result.packages;
+                        oldFileName = fileName;
                     } else {
-                        System.err.println("unmatched mapping file for file[" + fileName + "]");
+                        deleteRuns(result.methodRun, result.classRun);
                     }
+                    report.flush();
                 }
 
-                if (oldClasses.size() != 0) {
-                    System.out.println("====class diff old:" + oldFileName + " new:" + fileName + "====");
-                    processOldAndNewStringList(oldClasses, newClasses);
+                if (mCompare == Compare.ALL) {
+                    PhaseStats.Timer timer = mStats.start("all pairs", null, null);
+                    timer.stop(processAllPairs(matrix, report));
+                }
+                if (mHistory) {
+                    PhaseStats.Timer timer = mStats.start("history", null, null);
+                    timer.stop(processHistory("class", matrix, report) + processHistory("method", matrix, report));
                 }
-                if (oldMethods.size() != 0) {
-                    System.out.println("====method diff old:" + oldFileName + " new:" + fileName + "====");
-                    processOldAndNewStringList(oldMethods, newMethods);
+                report.flush();
+                deleteRuns(oldMethodRun, oldClassRun);
+            } finally {
+                executor.shutdownNow();
+                report.close();
+                if (mSortDir != null) {
+                    // If this failed, the inputs read ahead may still be
+                    // writing runs.
+                    awaitTermination(executor);
+                    deleteSortDir();
                 }
+            }
 
-                oldMethods = newMethods;
-                oldClasses = newClasses;
-                oldFileName = fileName;
+            if (mStats.isEnabled()) {
+                mStats.write(System.err, mStatsJson);
             }
+            return 0;
         } catch (UsageException ue) {
             usage();
-            System.exit(2);
+            return 2;
         } catch (IOException ioe) {
             if (ioe.getMessage() != null) {
                 System.err.println("Failed: " + ioe);
             }
-            System.exit(1);
+            return 1;
         } catch (DexDataException dde) {
             /* a message was already reported, just bail quietly */
-            System.exit(1);
+            return 1;
         }
     }
 
-    private void processClasses(DexData dexData, Set<String> newClasses) {
-        Set<String> allClassNames = dexData.getAllClassNames();
-        for (String className : allClassNames) {
-            String elementString = formatTypeElementString(className);
-            if (elementString != null && elementString.length() > 0) {
-                newClasses.add(elementString);
+    /**
+     * Reports the method_ids, field_ids and class_defs sizes of each DEX in
+     * each input, and their totals per input, without processing any DEX.
+     * These are all in the DEX header, so only the first bytes of each DEX
+     * are read (or inflated), and the inputs are read in parallel.
+     */
+    private void countHeaders(String[] inputFileNames, OutputStream out) throws IOException {
+        ReportWriter report = mOutputFile != null ?
+                ReportWriter.open(path(mOutputFile), mFormat) :
+                new ReportWriter(out, mFormat);
+        ExecutorService executor = Executors.newFixedThreadPool(mThreads);
+        try {
+            List<String> collectFileNames = collectFileNames(inputFileNames);
+            List<Future<Map<String, DexData>>> results = new ArrayList<>();
+            for (String fileName : collectFileNames) {
+                results.add(submit(() -> readDexHeaders(fileName), executor));
+            }
+
+            for (int i = 0; i < collectFileNames.size(); i++) {
+                String fileName = collectFileNames.get(i);
+                report.inputStarted(fileName, new File(path(fileName)).length());
+
+                Map<String, DexData> headers = await(results.get(i));
+                results.set(i, null);
+                int methodIds = 0;
+                int fieldIds = 0;
+                int classDefs = 0;
+                for (Map.Entry<String, DexData> entry : headers.entrySet()) {
+                    DexData header = entry.getValue();
+                    report.dexHeaderCounts(entry.getKey(), header.getMethodIdsSize(),
+                            header.getFieldIdsSize(), header.getClassDefsSize());
+                    methodIds += header.getMethodIdsSize();
+                    fieldIds += header.getFieldIdsSize();
+                    classDefs += header.getClassDefsSize();
+                }
+                report.inputHeaderCounts(headers.size(), methodIds, fieldIds, classDefs);
+            }
+            report.flush();
+        } finally {
+            executor.shutdownNow();
+            report.close();
+        }
+
+        if (mStats.isEnabled()) {
+            mStats.write(System.err, mStatsJson);
+        }
+    }
+
+    /**
+     * Lists the external references of each input, merged across its DEX
+     * files, and reports which were added and removed since the previous
+     * input (or the first, with --compare=baseline).  In the text format
+     * the lists are written by {@link Output}, as brief or XML, through the
+     * report; otherwise they are TSV or JSON records of the report like the
+     * diffs.  Inputs are read in parallel, up to mThreads files ahead, but
+     * always reported in order.
+     */
+    private void reportExternalReferences(String[] inputFileNames, OutputStream out) throws IOException {
+        List<String> collectFileNames = collectFileNames(inputFileNames);
+        boolean diff = collectFileNames.size() > 1;
+        if (diff && mExternalRefs.equals("xml")) {
+            System.err.println("--external-refs=xml has no format for diffs; give it a single input");
+            throw new UsageException();
+        }
+
+        ReportWriter report = mOutputFile != null ?
+                ReportWriter.open(path(mOutputFile), mFormat) :
+                new ReportWriter(out, mFormat);
+        Output output = mFormat == ReportWriter.Format.TEXT ? new Output(report.printWriter()) : null;
+        ExecutorService executor = Executors.newFixedThreadPool(mThreads);
+        try {
+            List<Future<ExternalResult>> results = new ArrayList<>();
+            ExternalResult oldResult = null;
+            String oldFileName = "";
+            for (int i = 0; i < collectFileNames.size(); i++) {
+                while (results.size() < collectFileNames.size() && results.size() <= i + mThreads) {
+                    String fileName = collectFileNames.get(results.size());
+                    results.add(submit(() -> readExternalReferences(fileName, diff), executor));
+                }
+
+                String fileName = collectFileNames.get(i);
+                ExternalResult result = await(results.get(i));
+                results.set(i, null);
+
+                if (output == null) {
+                    report.externalReferences(fileName, result.references);
+                } else {
+                    if (i == 0) {
+                        output.generateFirstHeader(fileName, mExternalRefs);
+                    } else {
+                        output.generateHeader(fileName, mExternalRefs);
+                    }
+                    output.generate(result.references, mExternalRefs, false);
+                    output.generateFooter(mExternalRefs);
+                }
+                result.references = null;
+
+                if (oldResult != null) {
+                    PhaseStats.Timer diffTimer = mStats.start("diff", fileName, null);
+                    int diffEntries = 0;
+                    report.diffStarted("external class", oldFileName, fileName);
+                    diffEntries += processOldAndNewStringList(oldResult.classIds, result.classIds, report);
+                    report.diffStarted("external field", oldFileName, fileName);
+                    diffEntries += processOldAndNewStringList(oldResult.fieldIds, result.fieldIds, report);
+                    report.diffStarted("external method", oldFileName, fileName);
+                    diffEntries += processOldAndNewStringList(oldResult.methodIds, result.methodIds, report);
+                    diffTimer.stop(diffEntries);
+                }
+                if (mCompare != Compare.BASELINE || i == 0) {
+                    oldResult = result;
+                    oldFileName = fileName;
+                }
             }
+        } finally {
+            executor.shutdownNow();
+            report.close();
+        }
+
+        if (mStats.isEnabled()) {
+            mStats.write(System.err, mStatsJson);
         }
     }
 
-    private void processMethods(Set<String> newMethods, DexData dexData) {
-        MethodRef[] methodRefs = dexData.getMethodRefs();
-        for (MethodRef methodRef : methodRefs) {
-            String methodString = getFormattedMethodString(methodRef);
-            if (methodString != null && methodString.length() > 0) {
-                newMethods.add(methodString);
+    /**
+     * Reads the DEX files of an input and merges their external
+     * references.
+     *
+     * @param intern whether to intern the references, in their brief
+     *               format, for diffing.
+     */
+    private ExternalResult readExternalReferences(String fileName, boolean intern) throws IOException {
+        List<String> entryNames = DexSource.listDexEntries(path(fileName));
+        if (entryNames.isEmpty()) {
+            // not a zip, so it's the DEX itself
+            entryNames = Collections.singletonList(null);
+        }
+
+        ExternalResult result = new ExternalResult();
+        result.references = new ExternalReferences();
+        for (String entryName : entryNames) {
+            mDexSource.read(path(fileName), entryName, result.references::add);
+        }
+        if (!intern) {
+            return result;
+        }
+
+        PhaseStats.Timer timer = mStats.start("external refs", fileName, null);
+        ExternalReferences refs = result.references;
+        List<String> classes = new ArrayList<>();
+        List<String> fields = new ArrayList<>();
+        List<String> methods = new ArrayList<>();
+        for (int i = 0; i < refs.getClassCount(); i++) {
+            String className = Output.descriptorToDot(refs.getClassName(i));
+            classes.add(className);
+            for (int j = 0; j < refs.getFieldCount(i); j++) {
+                fields.add(className + "." + refs.getFieldName(i, j) + " : " + refs.getFieldTypeName(i, j));
+            }
+            for (int j = 0; j < refs.getMethodCount(i); j++) {
+                methods.add(className + "." + refs.getMethodName(i, j) + " : " + refs.getMethodDescriptor(i, j));
             }
         }
+        result.classIds = mDictionary.intern(classes);
+        result.fieldIds = mDictionary.intern(fields);
+        result.methodIds = mDictionary.intern(methods);
+        timer.stop(classes.size() + fields.size() + methods.size());
+        return result;
     }
 
-    private void processOldAndNewStringList(Set<String> oldStrings, Set<String> newStrings) {
-        Set<String> addedMethodSet = new HashSet<>(newStrings);
-        addedMethodSet.removeAll(oldStrings);
+    /**
+     * Starts reading and formatting all DEX files in an input file.  Each
+     * DEX is handled by its own task, once the mapping (if any) is loaded.
+     * <p>
+     * First only the DEX headers are read.  A DEX that is byte for byte the
+     * same as one in the previous input, with the same mapping, isn't
+     * processed again: its results are shared.  Other DEX files reuse the
+     * methods of unchanged classes from the DEX of the same name in the
+     * previous input, if it used the same mapping, and format the rest, so
+     * each waits for just that one DEX.  None of this is done with a memory
+     * budget, where each DEX is sorted to temp files.
+     *
+     * @param mappingFileName         the file's mapping, or null if there
+     *                                is none.
+     * @param previousDexes           what this returned for the previous
+     *                                input.
+     * @param previousMappingFileName the previous input's mapping, or null.
+     */
+    private CompletableFuture<InputDexes> processInputFile(String fileName, String mappingFileName,
+                                                           CompletableFuture<InputDexes> previousDexes,
+                                                           String previousMappingFileName,
+                                                           Executor executor) {
+        return submit(() -> readDexHeaders(fileName), executor).thenCombine(previousDexes, (headers, previous) -> {
+            boolean reuseClasses = mMemoryBudget == 0 && Objects.equals(mappingFileName, previousMappingFileName);
 
-        Set<String> removedMethodSet = new HashSet<>(oldStrings);
-        removedMethodSet.removeAll(newStrings);
+            InputDexes dexes = new InputDexes();
+            for (Map.Entry<String, DexData> header : headers.entrySet()) {
+                String key = dexKey(header.getValue(), mappingFileName);
+                // The runs of a DEX are merged into its input's and then
+                // gone, so with a memory budget they aren't shared.
+                CompletableFuture<InputResult> dexResult = mMemoryBudget == 0 ? previous.byKey.get(key) : null;
+                if (dexResult == null) {
+                    dexResult = dexes.byKey.get(key);
+                }
+                if (dexResult == null && mMemoryBudget != 0) {
+                    dexResult = processDexFileExternal(fileName, header.getKey(), mappingFileName, executor);
+                } else if (dexResult == null) {
+                    CompletableFuture<InputResult> previousResult =
+                            reuseClasses ? previous.byEntry.get(header.getKey()) : null;
+                    dexResult = mSnapshots == null && mWarmCache == null ?
+                            processDexFile(fileName, header.getKey(), mappingFileName, null,
+                                    previousResult, executor) :
+                            processDexFileWithSnapshot(fileName, header.getKey(), header.getValue(),
+                                    mappingFileName, previousResult, executor);
+                }
+                dexes.byKey.put(key, dexResult);
+                dexes.byEntry.put(header.getKey(), dexResult);
+            }
+            return dexes;
+        });
+    }
 
-        List<String> orderedAddSet = new ArrayList<>(addedMethodSet);
-        Collections.sort(orderedAddSet);
+    /**
+     * Returns the combined results of all DEX files of an input.
+     */
+    private CompletableFuture<InputResult> mergeDexResults(
+            String fileName, CompletableFuture<InputDexes> dexes, Executor executor) {
+        return dexes.thenCompose(inputDexes -> {
+            List<CompletableFuture<InputResult>> dexResults = new ArrayList<>(inputDexes.byKey.values());
+            CompletableFuture<Void> all =
+                    CompletableFuture.allOf(dexResults.toArray(new CompletableFuture<?>[0]));
+            return all.thenCompose(ignored -> {
+                if (mMemoryBudget == 0) {
+                    PhaseStats.Timer timer = mStats.start("merge", fileName, null);
+                    InputResult result = merge(dexResults);
+                    timer.stop(result.methodIds.length);
+                    return CompletableFuture.completedFuture(result);
+                }
+                return submit(() -> {
+                    PhaseStats.Timer timer = mStats.start("merge", fileName, null);
+                    InputResult result = mergeRuns(dexResults, mMemoryBudget / mThreads);
+                    timer.stop(result.methodRun.count);
+                    return result;
+                }, executor);
+            });
+        });
+    }
 
-        StringBuilder sb = new StringBuilder();
-        sb.append("<" + orderedAddSet.size() + " added>\n");
-        for (String s : orderedAddSet) {
-            sb.append(s).append('\n');
+    /**
+     * Reads the header of each DEX in an input file.
+     *
+     * @return the headers by entry name, in archive order; the only entry
+     * is null if the file itself is the DEX.
+     */
+    private Map<String, DexData> readDexHeaders(String fileName) throws IOException {
+        PhaseStats.Timer timer = mStats.start("headers", fileName, null);
+        Map<String, DexData> headers = DexSource.readHeaders(path(fileName));
+        timer.stop(headers.size());
+        return headers;
+    }
+
+    /**
+     * Returns a string that identifies a DEX image and the mapping applied
+     * to it: its size and the checksum and SHA-1 signature of its contents,
+     * all from the header.
+     */
+    private static String dexKey(DexData header, String mappingFileName) {
+        return Util.toHex(header.getSignature()) + ":" + Integer.toHexString(header.getChecksum()) +
+                ":" + header.getFileSize() + ":" + (mappingFileName != null ? mappingFileName : "");
+    }
+
+    /**
+     * Loads one DEX image's snapshot, if there is one for this exact DEX
+     * and mapping in the warm cache or the cache directory, or processes
+     * the DEX and stores a snapshot otherwise.
+     */
+    private CompletableFuture<InputResult> processDexFileWithSnapshot(String fileName,
+                                                                      String entryName,
+                                                                      DexData header,
+                                                                      String mappingFileName,
+                                                                      CompletableFuture<InputResult>
+                                                                              previousResult,
+                                                                      Executor executor) {
+        CompletableFuture<String> key = mappingHash(mappingFileName, executor).thenApply(hash -> {
+            try {
+                return SnapshotStore.key(header, hash, mPackageOptions, mTypeFilter);
+            } catch (IOException ioe) {
+                throw new CompletionException(ioe);
+            }
+        });
+
+        return key.thenCompose(k -> submit(() -> readSnapshot(k, fileName, entryName), executor)).thenCompose(snapshot -> snapshot != null ?
+                CompletableFuture.completedFuture(snapshot) :
+                processDexFile(fileName, entryName, mappingFileName, key.join(), previousResult, executor));
+    }
+
+    /**
+     * Returns the interned results of a DEX from the warm cache, or else
+     * from the cache directory, or null if neither has them.
+     */
+    private InputResult readSnapshot(String key, String fileName, String entryName) {
+        if (mWarmCache != null) {
+            PhaseStats.Timer timer = mStats.start("warm read", fileName, entryName);
+            InputResult cached = mWarmCache.getDex(key, mPackageOptions);
+            if (cached != null) {
+                intern(cached);
+                timer.stop(cached.methodIds.length);
+                return cached;
+            }
+        }
+        if (mSnapshots == null) {
+            return null;
         }
 
-        List<String> orderedRemoveSet = new ArrayList<>(removedMethodSet);
-        Collections.sort(orderedRemoveSet);
+        PhaseStats.Timer timer = mStats.start("snapshot read", fileName, entryName);
+        InputResult snapshot = mSnapshots.read(key, mPackageOptions);
+        if (snapshot == null) {
+            return null;
+        }
+        intern(snapshot);
+        timer.stop(snapshot.methodIds.length);
+        if (mWarmCache != null) {
+            mWarmCache.putDex(key, snapshot, mDictionary);
+        }
+        return snapshot;
+    }
 
-        sb.append("\n").append("<" + orderedRemoveSet.size() + " removed>\n");
-        for (String s : orderedRemoveSet) {
-            sb.append(s).append('\n');
+    /**
+     * Starts formatting (and unmapping) the classes and methods of one DEX
+     * image, once the mapping (if any) is loaded.
+     *
+     * @param snapshotKey    where to store the results (in the cache
+     *                       directory and the warm cache), or null.
+     * @param previousResult the DEX whose classes may be unchanged, which
+     *                       this waits for; or null.
+     */
+    private CompletableFuture<InputResult> processDexFile(String fileName, String entryName,
+                                                          String mappingFileName, String snapshotKey,
+                                                          CompletableFuture<InputResult> previousResult,
+                                                          Executor executor) {
+        // If the previous DEX failed, its own input reports that; this
+        // one just formats all its classes.
+        CompletableFuture<InputResult> previous = previousResult == null ?
+                CompletableFuture.completedFuture(null) :
+                previousResult.handle((result, throwable) -> result);
+        CompletableFuture<Deobfuscator> mapping = deobfuscator(mappingFileName, executor);
+        return CompletableFuture.allOf(mapping, previous).thenCompose(ignored ->
+                submit(() -> {
+                    InputResult result = processDexFile(fileName, entryName, mapping.join(), previous.join());
+                    PhaseStats.Timer timer = mStats.start("intern", fileName, entryName);
+                    intern(result);
+                    timer.stop(result.classIds.length);
+                    if (snapshotKey != null && mSnapshots != null) {
+                        timer = mStats.start("snapshot write", fileName, entryName);
+                        mSnapshots.write(snapshotKey, result, mDictionary);
+                        timer.stop(result.methodIds.length);
+                    }
+                    if (snapshotKey != null && mWarmCache != null) {
+                        mWarmCache.putDex(snapshotKey, result, mDictionary);
+                    }
+                    return result;
+                }, executor));
+    }
+
+    /**
+     * Returns the (shared) future contents of a mapping file.
+     *
+     * @param mappingFileName the mapping file, or null for none.
+     */
+    private CompletableFuture<Deobfuscator> deobfuscator(String mappingFileName, Executor executor) {
+        if (mappingFileName == null) {
+            return CompletableFuture.completedFuture(null);
+        }
+        return mDeobfuscators.computeIfAbsent(mappingFileName, name -> mCacheDir == null ?
+                submit(() -> loadMapping(name, null), executor) :
+                mappingHash(name, executor).thenCompose(hash ->
+                        submit(() -> loadMapping(name, hash), executor)));
+    }
+
+    private Deobfuscator loadMapping(String mappingFileName, String mappingHash) throws IOException {
+        File file = new File(path(mappingFileName));
+        Deobfuscator deobfuscator = mWarmCache != null ? mWarmCache.getMapping(file) : null;
+        if (deobfuscator != null) {
+            return deobfuscator;
+        }
+        PhaseStats.Timer timer = mStats.start("mapping", mappingFileName, null);
+        deobfuscator = Deobfuscator.load(file, mappingHash, mCacheDir, mThreads);
+        timer.stop(file.length());
+        if (mWarmCache != null) {
+            mWarmCache.putMapping(file, deobfuscator);
+        }
+        return deobfuscator;
+    }
+
+    /**
+     * Returns the (shared) future SHA-1 of a mapping file.
+     *
+     * @param mappingFileName the mapping file, or null for none.
+     */
+    private CompletableFuture<String> mappingHash(String mappingFileName, Executor executor) {
+        if (mappingFileName == null) {
+            return CompletableFuture.completedFuture(null);
+        }
+        return mMappingHashes.computeIfAbsent(mappingFileName, name -> submit(() -> {
+            File file = new File(path(name));
+            String hash = mWarmCache != null ? mWarmCache.getMappingHash(file) : null;
+            if (hash != null) {
+                return hash;
+            }
+            PhaseStats.Timer timer = mStats.start("mapping hash", name, null);
+            hash = Util.sha1Hex(file);
+            timer.stop(file.length());
+            if (mWarmCache != null) {
+                mWarmCache.putMappingHash(file, hash);
+            }
+            return hash;
+        }, executor));
+    }
+
+    /**
+     * Formats (and unmaps) the classes and methods of one DEX image.
+     *
+     * @param deobfuscator    the mapping to apply, or null.
+     * @param previousClasses a DEX whose classes may be unchanged, or null.
+     */
+    private InputResult processDexFile(String fileName, String entryName, Deobfuscator deobfuscator,
+                                       InputResult previousClasses) throws IOException {
+        InputResult result = new InputResult(deobfuscator != null);
+        mDexSource.read(path(fileName), entryName, dexData -> {
+            SignatureFormatter formatter = newFormatter(dexData, deobfuscator, fileName, entryName);
+            PhaseStats.Timer timer = mStats.start("methods", fileName, entryName);
+            processMethods(result, formatter, deobfuscator, previousClasses);
+            timer.stop(dexData.getMethodCount());
+            timer = mStats.start("classes", fileName, entryName);
+            processClasses(result, formatter, deobfuscator);
+            timer.stop(formatter.getTypeCount());
+            if (mPackageOptions != null) {
+                timer = mStats.start("packages", fileName, entryName);
+                result.packages = countPackages(formatter, deobfuscator);
+                timer.stop(dexData.getMethodCount());
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Returns a formatter for a DEX, with the types the filter rejects
+     * marked, if there is a filter.
+     */
+    private SignatureFormatter newFormatter(DexData dexData, Deobfuscator deobfuscator,
+                                            String fileName, String entryName) {
+        if (mTypeFilter == null) {
+            return new SignatureFormatter(dexData);
         }
+        PhaseStats.Timer timer = mStats.start("filter", fileName, entryName);
+        boolean[] rejected = mTypeFilter.rejectedTypes(dexData, deobfuscator);
+        timer.stop(rejected.length);
+        return new SignatureFormatter(dexData, rejected);
+    }
 
-        System.out.println(sb.toString());
+    /**
+     * Starts sorting the classes and methods of one DEX image to temp
+     * files, once the mapping (if any) is loaded.
+     */
+    private CompletableFuture<InputResult> processDexFileExternal(String fileName, String entryName,
+                                                                  String mappingFileName, Executor executor) {
+        return deobfuscator(mappingFileName, executor).thenCompose(mapping ->
+                submit(() -> processDexFileExternal(fileName, entryName, mapping), executor));
     }
 
-    private String getFormattedMethodString(MethodRef methodRef) {
+    /**
+     * Formats (and unmaps) the classes and methods of one DEX image into
+     * sorted runs, holding at most this thread's share of the memory
+     * budget of them at a time.  Classes are few enough, at most one per
+     * type_ids entry, to be collected in memory first.
+     *
+     * @param deobfuscator the mapping to apply, or null.
+     */
+    private InputResult processDexFileExternal(String fileName, String entryName,
+                                               Deobfuscator deobfuscator) throws IOException {
+        // Split between the methods and their names in the DEX.
+        long budget = mMemoryBudget / mThreads / 2;
+        ExternalSort methodSort = new ExternalSort(budget, mSortDir);
+        ExternalSort obfuscatedMethodSort = deobfuscator != null ? new ExternalSort(budget, mSortDir) : null;
+
+        InputResult result = new InputResult(deobfuscator != null);
         try {
+            readDexFileExternal(result, fileName, entryName, deobfuscator, methodSort, obfuscatedMethodSort);
+        } catch (IOException | RuntimeException e) {
+            methodSort.discard();
+            if (obfuscatedMethodSort != null) {
+                obfuscatedMethodSort.discard();
+            }
+            deleteDexRuns(result);
+            throw e;
+        }
+        return result;
+    }
 
-            // class name
-            String className = methodRef.getDeclClassName();
-            className = className.substring(1, className.length() - 1).replace("/", ".");
+    /**
+     * Reads one DEX image's methods into the sorts, and its classes into
+     * the result, and then sorts them all into runs.
+     */
+    private void readDexFileExternal(InputResult result, String fileName, String entryName,
+                                     Deobfuscator deobfuscator, ExternalSort methodSort,
+                                     ExternalSort obfuscatedMethodSort) throws IOException {
+        mDexSource.read(path(fileName), entryName, dexData -> {
+            SignatureFormatter formatter = newFormatter(dexData, deobfuscator, fileName, entryName);
+            PhaseStats.Timer timer = mStats.start("methods", fileName, entryName);
+            Set<String> methods = new HashSet<>();
+            Set<String> obfuscatedMethods = deobfuscator != null ? new HashSet<>() : null;
+            StringBuilder sb = new StringBuilder();
+            int methodCount = dexData.getMethodCount();
+            int end;
+            for (int start = 0; start < methodCount; start = end) {
+                int classIdx = dexData.getMethodClassIndex(start);
+                end = start + 1;
+                while (end < methodCount && dexData.getMethodClassIndex(end) == classIdx) {
+                    end++;
+                }
+                if (formatMethods(formatter, deobfuscator, classIdx, start, end, sb, methods, obfuscatedMethods)) {
+                    methodSort.addAll(methods);
+                    if (obfuscatedMethodSort != null) {
+                        obfuscatedMethodSort.addAll(obfuscatedMethods);
+                    }
+                }
+            }
+            timer.stop(methodCount);
 
-            // method name
-            String methodName = methodRef.getName();
-            // 跳过access***方法
-            if (methodName.contains("$")) {
-                return null;
+            timer = mStats.start("classes", fileName, entryName);
+            processClasses(result, formatter, deobfuscator);
+            timer.stop(formatter.getTypeCount());
+            if (mPackageOptions != null) {
+                timer = mStats.start("packages", fileName, entryName);
+                result.packages = countPackages(formatter, deobfuscator);
+                timer.stop(dexData.getMethodCount());
             }
+        });
 
-            // params
-            String desc = methodRef.getDescriptor();
-            int sepIndex = desc.indexOf(")");
-            String paramListString = desc.substring(1, sepIndex);
-            paramListString = formatParamListString(paramListString);
+        PhaseStats.Timer timer = mStats.start("sort", fileName, entryName);
+        result.methodRuns = methodSort.finish();
+        result.classRuns = sortClasses(result.classes);
+        result.methods = null;
+        result.classes = null;
+        if (deobfuscator != null) {
+            result.obfuscatedMethodRuns = obfuscatedMethodSort.finish();
+            result.obfuscatedClassRuns = sortClasses(result.obfuscatedClasses);
+            result.obfuscatedMethods = null;
+            result.obfuscatedClasses = null;
+        }
+        timer.stop(-1);
+    }
 
-            // return value
-            String returnString = methodRef.getReturnTypeName();
-            returnString = formatTypeElementString(returnString);
+    private List<ExternalSort.Run> sortClasses(Set<String> classes) throws IOException {
+        ExternalSort sort = new ExternalSort(Long.MAX_VALUE, mSortDir);
+        sort.addAll(classes);
+        return sort.finish();
+    }
+
+    /**
+     * Replaces the signature sets of a DEX with their ids.  The results of
+     * one DEX may be shared by several inputs, so from here on they are
+     * only read.
+     */
+    private InputResult intern(InputResult result) {
+        if (result.methods != null) {
+            result.methodIds = mDictionary.intern(result.methods);
+            result.methods = null;
+        }
+        result.classIds = mDictionary.intern(result.classes);
+        result.classes = null;
+        if (result.obfuscatedMethods != null) {
+            result.obfuscatedMethodIds = mDictionary.intern(result.obfuscatedMethods);
+            result.obfuscatedMethods = null;
+        }
+        if (result.obfuscatedClasses != null) {
+            result.obfuscatedClassIds = mDictionary.intern(result.obfuscatedClasses);
+            result.obfuscatedClasses = null;
+        }
+        return result;
+    }
+
+    /**
+     * Combines the interned per-DEX results of an input file.
+     */
+    private static InputResult merge(List<CompletableFuture<InputResult>> dexResults) {
+        InputResult first = dexResults.get(0).join();
+        InputResult result = new InputResult(false);
+        result.methods = null;
+        result.classes = null;
+        result.methodIds = first.methodIds;
+        result.classIds = first.classIds;
+        int[] obfuscatedMethodIds = first.obfuscatedMethodIds;
+        int[] obfuscatedClassIds = first.obfuscatedClassIds;
+        result.packages = mergePackages(dexResults);
+
+        for (int i = 1; i < dexResults.size(); i++) {
+            InputResult dexResult = dexResults.get(i).join();
+            result.methodIds = SignatureDictionary.union(result.methodIds, dexResult.methodIds);
+            result.classIds = SignatureDictionary.union(result.classIds, dexResult.classIds);
+            if (obfuscatedMethodIds != null) {
+                obfuscatedMethodIds = SignatureDictionary.union(obfuscatedMethodIds, dexResult.obfuscatedMethodIds);
+                obfuscatedClassIds = SignatureDictionary.union(obfuscatedClassIds, dexResult.obfuscatedClassIds);
+            }
+        }
 
-            // combine
-            return returnString + " " + className + "." + methodName + "(" + paramListString + ")";
-        } catch (Exception e) {
-            e.printStackTrace();
+        // Counted as they appear in the DEX.
+        if (obfuscatedMethodIds != null) {
+            result.methodCount = obfuscatedMethodIds.length;
+            result.classCount = obfuscatedClassIds.length;
+        } else {
+            result.methodCount = result.methodIds.length;
+            result.classCount = result.classIds.length;
         }
-        return null;
+        return result;
     }
 
     /**
-     * 标识字符	含义
-     * B	基本类型byte
-     * C	char
-     * D	double
-     * F	float
-     * I	int
-     * J	long
-     * S	short
-     * Z	boolean
-     * V	void
-     * L	对象类型，如Ljava/lang/Object;
+     * Combines the per-DEX runs of an input file, with a memory budget.
+     * The DEX runs are deleted; the names as they appear in the DEX are
+     * only counted.
      *
-     * @param param
-     * @return
-     */
-    private String formatParamListString(String param) {
-        StringBuilder resultSb = new StringBuilder();
-        int i = 0;
-        while (i < param.length()) {
-            char head = param.charAt(i);
-
-            // array
-            boolean inArray = false;
-            if (head == '[') {
-                inArray = true;
-                head = param.charAt(++i);
-            }
-
-            switch (head) {
-                case 'B':
-                    resultSb.append("byte");
-                    break;
-                case 'C':
-                    resultSb.append("char");
-                    break;
-                case 'D':
-                    resultSb.append("double");
-                    break;
-                case 'F':
-                    resultSb.append("float");
-                    break;
-                case 'J':
-                    resultSb.append("long");
-                    break;
-                case 'S':
-                    resultSb.append("short");
-                    break;
-                case 'I':
-                    resultSb.append("int");
-                    break;
-                case 'V':
-                    resultSb.append("void");
-                    break;
-                case 'Z':
-                    resultSb.append("boolean");
-                    break;
-            }
-            if (head == 'L') {
-                int objectEndMark = param.indexOf(";", i);
-                String objectStr = param.substring(i, objectEndMark);
-                resultSb.append(formatTypeElementString(objectStr));
-
-                i = objectEndMark + 1;
+     * @param budget how many bytes each merge may buffer.
+     */
+    private static InputResult mergeRuns(List<CompletableFuture<InputResult>> dexResults,
+                                         long budget) throws IOException {
+        List<ExternalSort.Run> methodRuns = new ArrayList<>();
+        List<ExternalSort.Run> classRuns = new ArrayList<>();
+        List<ExternalSort.Run> obfuscatedMethodRuns = new ArrayList<>();
+        List<ExternalSort.Run> obfuscatedClassRuns = new ArrayList<>();
+        for (CompletableFuture<InputResult> dexResult : dexResults) {
+            methodRuns.addAll(dexResult.join().methodRuns);
+            classRuns.addAll(dexResult.join().classRuns);
+            if (dexResult.join().obfuscatedMethodRuns != null) {
+                obfuscatedMethodRuns.addAll(dexResult.join().obfuscatedMethodRuns);
+                obfuscatedClassRuns.addAll(dexResult.join().obfuscatedClassRuns);
+            }
+        }
+
+        InputResult result = new InputResult(false);
+        result.methods = null;
+        result.classes = null;
+        try {
+            result.methodRun = ExternalSort.merge(methodRuns, budget);
+            result.classRun = ExternalSort.merge(classRuns, budget);
+            result.packages = mergePackages(dexResults);
+
+            // Counted as they appear in the DEX.
+            if (!obfuscatedMethodRuns.isEmpty()) {
+                ExternalSort.Run obfuscatedMethodRun = ExternalSort.merge(obfuscatedMethodRuns, budget);
+                ExternalSort.Run obfuscatedClassRun = ExternalSort.merge(obfuscatedClassRuns, budget);
+                result.methodCount = obfuscatedMethodRun.count;
+                result.classCount = obfuscatedClassRun.count;
+                deleteRuns(obfuscatedMethodRun, obfuscatedClassRun);
             } else {
-                i++;
+                result.methodCount = result.methodRun.count;
+                result.classCount = result.classRun.count;
+            }
+        } catch (IOException | RuntimeException e) {
+            // Those of the DEX runs that weren't merged yet, too.
+            for (CompletableFuture<InputResult> dexResult : dexResults) {
+                deleteDexRuns(dexResult.join());
             }
+            deleteRuns(result.methodRun, result.classRun);
+            throw e;
+        }
+        return result;
+    }
 
-            if (inArray) {
-                resultSb.append("[]");
+    /**
+     * Adds up the package counts of the DEX files of an input, or returns
+     * null if there are none.
+     */
+    private static PackageTrie mergePackages(List<CompletableFuture<InputResult>> dexResults) {
+        PackageTrie first = dexResults.get(0).join().packages;
+        if (first == null) {
+            return null;
+        }
+        PackageTrie packages = new PackageTrie(first.getOptions());
+        for (CompletableFuture<InputResult> dexResult : dexResults) {
+            packages.addAll(dexResult.join().packages);
+        }
+        return packages;
+    }
+
+    private static void deleteRuns(ExternalSort.Run... runs) {
+        for (ExternalSort.Run run : runs) {
+            if (run != null) {
+                run.delete();
             }
-            resultSb.append(", ");
         }
+    }
 
-        if (resultSb.length() > 0) {
-            resultSb.deleteCharAt(resultSb.length() - 1)
-                    .deleteCharAt(resultSb.length() - 1);
+    /**
+     * Deletes the sorted runs of a DEX that won't be merged.
+     */
+    private static void deleteDexRuns(InputResult result) {
+        for (List<ExternalSort.Run> runs : Arrays.asList(result.methodRuns, result.classRuns,
+                result.obfuscatedMethodRuns, result.obfuscatedClassRuns)) {
+            if (runs != null) {
+                deleteRuns(runs.toArray(new ExternalSort.Run[0]));
+            }
         }
-        return resultSb.toString();
     }
 
     /**
-     * 标识字符	含义
-     * B	基本类型byte
-     * C	char
-     * D	double
-     * F	float
-     * I	int
-     * J	long
-     * S	short
-     * Z	boolean
-     * V	void
-     * L	对象类型，如Ljava/lang/Object;
+     * Runs a task on the executor, capturing its result or exception.
+     */
+    private static <T> CompletableFuture<T> submit(Callable<T> task, Executor executor) {
+        final CompletableFuture<T> future = new CompletableFuture<>();
+        executor.execute(() -> {
+            try {
+                future.complete(task.call());
+            } catch (Throwable t) {
+                future.completeExceptionally(t);
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Waits for a task, rethrowing whatever it failed with as if it had
+     * run on this thread.
+     */
+    private static <T> T await(Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } catch (ExecutionException ee) {
+            Throwable cause = ee.getCause();
+            while (cause instanceof CompletionException && cause.getCause() != null) {
+                cause = cause.getCause();
+            }
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new RuntimeException(cause);
+        }
+    }
+
+    /**
+     * Waits for the tasks still running after a shutdown to finish.
+     */
+    private static void awaitTermination(ExecutorService executor) {
+        try {
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Deletes the runs that are left, if this failed, and their directory.
+     */
+    private void deleteSortDir() {
+        File[] runFiles = mSortDir.listFiles();
+        if (runFiles != null) {
+            for (File runFile : runFiles) {
+                runFile.delete();
+            }
+        }
+        mSortDir.delete();
+        mSortDir = null;
+    }
+
+    private void processClasses(InputResult result, SignatureFormatter formatter, Deobfuscator deobfuscator) {
+        for (int i = 0; i < formatter.getTypeCount(); i++) {
+            if (formatter.isRejected(i)) {
+                continue;
+            }
+            String elementString = formatter.className(i);
+            if (elementString != null && elementString.length() > 0) {
+                if (deobfuscator == null) {
+                    result.classes.add(elementString);
+                } else if (result.obfuscatedClasses.add(elementString)) {
+                    result.classes.add(deobfuscator.originalClassName(elementString));
+                }
+            }
+        }
+    }
+
+    /**
+     * Formats (and unmaps) the methods of one DEX image, and interns them
+     * class by class.  A class whose fingerprint is among the previous
+     * DEX's classes has the same methods as that one did, so its ids are
+     * copied instead.
      *
-     * @param returnString
-     * @return
+     * @param previous a DEX whose classes may be unchanged, or null.
      */
-    private String formatTypeElementString(String returnString) {
-        boolean isArray = false;
-        if (returnString.startsWith("[")) {
-            returnString = returnString.substring(1);
-            isArray = true;
+    private void processMethods(InputResult result, SignatureFormatter formatter, Deobfuscator deobfuscator,
+                                InputResult previous) {
+        DexData dexData = formatter.getDexData();
+        long[] fingerprints = dexData.getMethodFingerprints();
+        // Not kept for DEX files loaded from snapshots.
+        Map<Long, ClassMethods> previousClasses = previous != null && previous.classMethods != null ?
+                previous.classMethods : Collections.emptyMap();
+        // The ids of each class's methods, until they're all in one array.
+        int[][] classMethodIds = new int[fingerprints.length][];
+        int[][] classObfuscatedMethodIds = deobfuscator != null ? new int[fingerprints.length][] : null;
+
+        Set<String> methods = new HashSet<>();
+        Set<String> obfuscatedMethods = deobfuscator != null ? new HashSet<>() : null;
+        StringBuilder sb = new StringBuilder();
+        int methodCount = dexData.getMethodCount();
+        int end;
+        for (int start = 0; start < methodCount; start = end) {
+            // method_ids are sorted by class, so a class's methods are
+            // (normally) one run.
+            int classIdx = dexData.getMethodClassIndex(start);
+            end = start + 1;
+            while (end < methodCount && dexData.getMethodClassIndex(end) == classIdx) {
+                end++;
+            }
+
+            ClassMethods previousMethods = previousClasses.get(fingerprints[classIdx]);
+            if (previousMethods != null) {
+                classMethodIds[classIdx] = Arrays.copyOfRange(previous.classMethodIds,
+                        previousMethods.start, previousMethods.end);
+                if (deobfuscator != null) {
+                    classObfuscatedMethodIds[classIdx] = Arrays.copyOfRange(previous.classObfuscatedMethodIds,
+                            previousMethods.obfuscatedStart, previousMethods.obfuscatedEnd);
+                }
+                continue;
+            }
+
+            if (!formatMethods(formatter, deobfuscator, classIdx, start, end, sb, methods, obfuscatedMethods)) {
+                continue;
+            }
+
+            classMethodIds[classIdx] = union(classMethodIds[classIdx], mDictionary.intern(methods));
+            if (deobfuscator != null) {
+                classObfuscatedMethodIds[classIdx] = union(classObfuscatedMethodIds[classIdx],
+                        mDictionary.intern(obfuscatedMethods));
+            }
         }
 
-        // base
-        switch (returnString) {
-            case "B":
-                return "byte";
-            case "C":
-                return "char";
-            case "D":
-                return "double";
-            case "F":
-                return "float";
-            case "J":
-                return "long";
-            case "S":
-                return "short";
-            case "I":
-                return "int";
-            case "V":
-                return "void";
-            case "Z":
-                return "boolean";
+        // All of the classes' ids go into one array, each class's a range
+        // of it.
+        result.classMethods = new HashMap<>();
+        result.classMethodIds = concat(classMethodIds);
+        result.classObfuscatedMethodIds = deobfuscator != null ? concat(classObfuscatedMethodIds) : null;
+        int offset = 0;
+        int obfuscatedOffset = 0;
+        for (int classIdx = 0; classIdx < classMethodIds.length; classIdx++) {
+            if (classMethodIds[classIdx] != null) {
+                int classEnd = offset + classMethodIds[classIdx].length;
+                int obfuscatedClassEnd = deobfuscator != null ?
+                        obfuscatedOffset + classObfuscatedMethodIds[classIdx].length : 0;
+                result.classMethods.put(fingerprints[classIdx],
+                        new ClassMethods(offset, classEnd, obfuscatedOffset, obfuscatedClassEnd));
+                offset = classEnd;
+                obfuscatedOffset = obfuscatedClassEnd;
+            }
         }
-        // Object
-        if (returnString.startsWith("L")) {
-            returnString = returnString.substring(1).replace("/", ".");
+        result.methodIds = SignatureDictionary.union(Collections.singletonList(result.classMethodIds));
+        result.methods = null;
+        if (deobfuscator != null) {
+            result.obfuscatedMethodIds =
+                    SignatureDictionary.union(Collections.singletonList(result.classObfuscatedMethodIds));
+            result.obfuscatedMethods = null;
         }
-        if (returnString.endsWith(";")) {
-            returnString = returnString.substring(0, returnString.length() - 1);
+    }
+
+    /**
+     * Returns the union of two sorted id arrays, the first of which may be
+     * null.
+     */
+    private static int[] union(int[] a, int[] b) {
+        return a == null ? b : SignatureDictionary.union(a, b);
+    }
+
+    /**
+     * Returns the given arrays, skipping nulls, one after another.
+     */
+    private static int[] concat(int[][] arrays) {
+        int length = 0;
+        for (int[] array : arrays) {
+            length += array != null ? array.length : 0;
         }
-        // array
-        if (isArray) {
-            returnString += "[]";
+        int[] result = new int[length];
+        int offset = 0;
+        for (int[] array : arrays) {
+            if (array != null) {
+                System.arraycopy(array, 0, result, offset, array.length);
+                offset += array.length;
+            }
         }
-        return returnString;
+        return result;
     }
 
     /**
-     * Opens an input file, which could be a .dex or a .jar/.apk with a
-     * classes.dex inside.  If the latter, we extract the contents to a
-     * temporary file.
+     * Formats (and unmaps) one run of methods of a class, replacing the
+     * contents of the given sets.
+     *
+     * @param start the first method_ids index of the run.
+     * @param end   the index after the run.
+     * @return false if the class isn't one whose methods are listed, or
+     * the filter rejects it.
      */
-    List<RandomAccessFile> openInputFiles(String fileName) throws IOException {
-        List<RandomAccessFile> dexFiles = new ArrayList<RandomAccessFile>();
+    static boolean formatMethods(SignatureFormatter formatter, Deobfuscator deobfuscator, int classIdx,
+                                         int start, int end, StringBuilder sb,
+                                         Set<String> methods, Set<String> obfuscatedMethods) {
+        DexData dexData = formatter.getDexData();
+        if (formatter.isRejected(classIdx)) {
+            return false;
+        }
+
+        // class name
+        String className = formatter.declaringClassName(classIdx);
+        if (className == null) {
+            return false;
+        }
+
+        methods.clear();
+        if (obfuscatedMethods != null) {
+            obfuscatedMethods.clear();
+        }
+        for (int i = start; i < end; i++) {
+            // method name
+            String methodName = dexData.getMethodName(i);
+            // 跳过access***方法
+            if (methodName.contains("$")) {
+                continue;
+            }
 
-        openInputFileAsZip(fileName, dexFiles);
-        if (dexFiles.size() == 0) {
-            File inputFile = new File(fileName);
-            RandomAccessFile dexFile = new RandomAccessFile(inputFile, "r");
-            dexFiles.add(dexFile);
+            // params and return value
+            int protoIdx = dexData.getMethodProtoIndex(i);
+            String paramListString = formatter.parameterList(protoIdx);
+            String returnString = formatter.returnTypeName(protoIdx);
+
+            sb.setLength(0);
+            String methodString = sb.append(returnString).append(' ').append(className).append('.')
+                    .append(methodName).append('(').append(paramListString).append(')').toString();
+            if (deobfuscator == null) {
+                methods.add(methodString);
+            } else if (obfuscatedMethods.add(methodString)) {
+                deobfuscator.addOriginalMethods(returnString, className, methodName, paramListString,
+                        methods);
+            }
         }
 
-        return dexFiles;
+        return true;
     }
 
     /**
-     * Tries to open an input file as a Zip archive (jar/apk) with a
-     * "classes.dex" inside.
+     * Counts the methods of one DEX image per package, in a single pass over
+     * its method_ids.  Each declaring class is placed in the trie only once.
+     * Like the method lists, it skips methods with a '$' in their name.
+     * Unlike the totals, which are of distinct signatures, a method that
+     * more than one classes*.dex refers to counts in each of them, as it
+     * does against their 64K limits.
      */
-    void openInputFileAsZip(String fileName, List<RandomAccessFile> dexFiles) throws IOException {
-        ZipFile zipFile;
+    private PackageTrie countPackages(SignatureFormatter formatter, Deobfuscator deobfuscator) {
+        DexData dexData = formatter.getDexData();
+        PackageTrie packages = new PackageTrie(mPackageOptions);
 
-        // Try it as a zip file.
-        try {
-            zipFile = new ZipFile(fileName);
-        } catch (FileNotFoundException fnfe) {
-            // not found, no point in retrying as non-zip.
-            System.err.println("Unable to open '" + fileName + "': " +
-                    fnfe.getMessage());
-            throw fnfe;
-        } catch (ZipException ze) {
-            // not a zip
-            return;
+        // type_ids index -> trie node + 1, or -1 if filtered out, or 0 if
+        // not looked up yet.
+        int[] nodes = new int[formatter.getTypeCount()];
+        for (int i = 0, methodCount = dexData.getMethodCount(); i < methodCount; i++) {
+            int classIdx = dexData.getMethodClassIndex(i);
+            int node = nodes[classIdx];
+            if (node == 0 && formatter.isRejected(classIdx)) {
+                nodes[classIdx] = -1;
+                continue;
+            }
+            // 跳过access***方法
+            if (node != -1 && dexData.getMethodName(i).contains("$")) {
+                continue;
+            }
+            if (node == 0) {
+                // Methods of array types, like clone(), count in the root.
+                String className = formatter.className(classIdx);
+                if (className == null) {
+                    className = "";
+                } else if (deobfuscator != null) {
+                    className = deobfuscator.originalClassName(className);
+                }
+                node = packages.nodeForClass(className) + 1;
+                nodes[classIdx] = node;
+            }
+            if (node > 0) {
+                packages.add(node - 1, 1);
+            }
         }
+        return packages;
+    }
+
+    /**
+     * Writes the method count of each package, and how much it changed
+     * since the previous input.
+     *
+     * @param oldPackages the previous input's counts, or null.
+     */
+    private void processPackages(PackageTrie oldPackages, PackageTrie newPackages,
+                                 ReportWriter report) throws IOException {
+        // Both sets of packages, so removed ones are listed too.
+        PackageTrie packages = new PackageTrie(mPackageOptions);
+        int[] newNodes = packages.addAll(newPackages);
+        int[] oldNodes = oldPackages != null ? packages.addAll(oldPackages) : null;
 
-        // Open and add all files matching "classes.*\.dex" in the zip file.
-        for (ZipEntry entry : Collections.list(zipFile.entries())) {
-            if (entry.getName().matches("classes.*\\.dex")) {
-                dexFiles.add(openDexFile(zipFile, entry));
+        int[] newTotals = new int[packages.size()];
+        int[] totals = newPackages.totals();
+        for (int i = 0; i < totals.length; i++) {
+            newTotals[newNodes[i]] = totals[i];
+        }
+        int[] oldTotals = new int[packages.size()];
+        if (oldPackages != null) {
+            totals = oldPackages.totals();
+            for (int i = 0; i < totals.length; i++) {
+                oldTotals[oldNodes[i]] = totals[i];
             }
         }
 
-        zipFile.close();
+        report.packagesStarted(oldPackages != null);
+        for (int node : packages.preorder()) {
+            report.packageCount(packages.name(node), packages.segment(node), packages.depth(node),
+                    newTotals[node], oldPackages != null ? newTotals[node] - oldTotals[node] : 0);
+        }
+        report.packagesFinished();
     }
 
-    RandomAccessFile openDexFile(ZipFile zipFile, ZipEntry entry) throws IOException {
-        // We know it's a zip; see if there's anything useful inside.  A
-        // failure here results in some type of IOException (of which
-        // ZipException is a subclass).
-        InputStream zis = zipFile.getInputStream(entry);
+    /**
+     * Writes the signatures added and removed between two sets of ids.
+     * Only those strings are looked up, and sorted, for printing.
+     *
+     * @return the number of entries written.
+     */
+    private int processOldAndNewStringList(int[] oldIds, int[] newIds, ReportWriter report) throws IOException {
+        return writeDiff(SignatureDictionary.subtract(newIds, oldIds), SignatureDictionary.subtract(oldIds, newIds), report);
+    }
 
-        // Create a temp file to hold the DEX data, open it, and delete it
-        // to ensure it doesn't hang around if we fail.
-        File tempFile = File.createTempFile("dexdeps", ".dex");
-        RandomAccessFile dexFile = new RandomAccessFile(tempFile, "rw");
-        tempFile.delete();
+    /**
+     * Writes the signatures added and removed between two sorted runs,
+     * streaming them from temp files.
+     *
+     * @return the number of entries written.
+     */
+    private static int processOldAndNewRuns(ExternalSort.Run oldRun, ExternalSort.Run newRun,
+                                            ReportWriter report) throws IOException {
+        int count = writeRun("added", ExternalSort.subtract(newRun, oldRun), report);
+        count += writeRun("removed", ExternalSort.subtract(oldRun, newRun), report);
+        report.diffFinished();
+        return count;
+    }
 
-        // Copy all data from input stream to output file.
-        byte copyBuf[] = new byte[32768];
-        int actual;
+    /**
+     * Writes a diff section from a run, and deletes it.
+     *
+     * @return the number of entries written.
+     */
+    private static int writeRun(String change, ExternalSort.Run run, ReportWriter report) throws IOException {
+        ExternalSort.RunReader reader = null;
+        try {
+            report.diffSection(change, run.count);
+            reader = run.open();
+            for (String s = reader.next(); s != null; s = reader.next()) {
+                report.diffEntry(s);
+            }
+        } finally {
+            if (reader != null) {
+                reader.close();
+            }
+            run.delete();
+        }
+        return run.count;
+    }
 
-        while (true) {
-            actual = zis.read(copyBuf);
-            if (actual == -1)
-                break;
+    /**
+     * Writes the given signatures as added and removed, sorted.
+     *
+     * @return the number of entries written.
+     */
+    private int writeDiff(int[] addedIds, int[] removedIds, ReportWriter report) throws IOException {
+        String[] orderedAddSet = mDictionary.getSorted(addedIds);
+        report.diffSection("added", orderedAddSet.length);
+        for (String s : orderedAddSet) {
+            report.diffEntry(s);
+        }
+        orderedAddSet = null;
 
-            dexFile.write(copyBuf, 0, actual);
+        String[] orderedRemoveSet = mDictionary.getSorted(removedIds);
+        report.diffSection("removed", orderedRemoveSet.length);
+        for (String s : orderedRemoveSet) {
+            report.diffEntry(s);
         }
 
-        dexFile.seek(0);
+        report.diffFinished();
+        return addedIds.length + removedIds.length;
+    }
 
-        return dexFile;
+    /**
+     * Writes the class and method diffs between every pair of inputs, the
+     * earlier one as old.
+     *
+     * @return the number of entries written.
+     */
+    private int processAllPairs(BuildMatrix matrix, ReportWriter report) throws IOException {
+        int count = 0;
+        for (int oldInput = 0; oldInput < matrix.size(); oldInput++) {
+            for (int newInput = oldInput + 1; newInput < matrix.size(); newInput++) {
+                report.diffStarted("class", matrix.fileName(oldInput), matrix.fileName(newInput));
+                count += writeDiff(matrix.subtract(false, newInput, oldInput),
+                        matrix.subtract(false, oldInput, newInput), report);
+                report.diffStarted("method", matrix.fileName(oldInput), matrix.fileName(newInput));
+                count += writeDiff(matrix.subtract(true, newInput, oldInput),
+                        matrix.subtract(true, oldInput, newInput), report);
+                report.flush();
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Writes the first and last input of every class or method that isn't
+     * in all of them, sorted.
+     *
+     * @param kind "class" or "method".
+     * @return the number of entries written.
+     */
+    private int processHistory(String kind, BuildMatrix matrix, ReportWriter report) throws IOException {
+        BuildMatrix.History history = matrix.history(kind.equals("method"));
+        String[] signatures = new String[history.ids.length];
+        Integer[] order = new Integer[history.ids.length];
+        for (int i = 0; i < signatures.length; i++) {
+            signatures[i] = mDictionary.get(history.ids[i]);
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> signatures[a].compareTo(signatures[b]));
+
+        report.historyStarted(kind, signatures.length);
+        for (int i : order) {
+            report.historyEntry(signatures[i], matrix.fileName(history.firstSeen[i]),
+                    matrix.fileName(history.lastSeen[i]));
+        }
+        report.historyFinished();
+        return signatures.length;
     }
 
     private String[] parseArgs(String[] args) {
         int idx = 0;
+        boolean formatGiven = false;
 
         for (idx = 0; idx < args.length; idx++) {
             String arg = args[idx];
@@ -411,12 +1444,125 @@ public class Main {
                 break;
             } else if (arg.startsWith("--mapping")) {
                 mMappingFiles = arg.substring(arg.indexOf('=') + 1).split(",");
+            } else if (arg.startsWith("--threads=")) {
+                try {
+                    mThreads = Integer.parseInt(arg.substring(arg.indexOf('=') + 1));
+                } catch (NumberFormatException nfe) {
+                    mThreads = 0;
+                }
+                if (mThreads < 1) {
+                    System.err.println("Bad thread count '" + arg + "'");
+                    throw new UsageException();
+                }
+            } else if (arg.startsWith("--output=")) {
+                mOutputFile = arg.substring(arg.indexOf('=') + 1);
+            } else if (arg.startsWith("--format=")) {
+                try {
+                    mFormat = ReportWriter.Format.valueOf(
+                            arg.substring(arg.indexOf('=') + 1).toUpperCase(Locale.ROOT));
+                    formatGiven = true;
+                } catch (IllegalArgumentException iae) {
+                    System.err.println("Unknown format '" + arg + "'");
+                    throw new UsageException();
+                }
+            } else if (arg.startsWith("--cache-dir=")) {
+                mCacheDir = new File(path(arg.substring(arg.indexOf('=') + 1)));
+                mSnapshots = new SnapshotStore(mCacheDir);
+            } else if (arg.startsWith("--memory-budget=")) {
+                mMemoryBudget = parseSize(arg.substring(arg.indexOf('=') + 1));
+            } else if (arg.startsWith("--buffer-limit=")) {
+                mBufferLimit = Math.min(parseSize(arg.substring(arg.indexOf('=') + 1)),
+                        MAX_BUFFER_LIMIT);
+            } else if (arg.startsWith("--compare=")) {
+                try {
+                    mCompare = Compare.valueOf(arg.substring(arg.indexOf('=') + 1).toUpperCase(Locale.ROOT));
+                } catch (IllegalArgumentException iae) {
+                    System.err.println("Unknown comparison '" + arg + "'");
+                    throw new UsageException();
+                }
+            } else if (arg.equals("--stats") || arg.startsWith("--stats=")) {
+                String format = arg.indexOf('=') >= 0 ? arg.substring(arg.indexOf('=') + 1) : "text";
+                if (!format.equals("text") && !format.equals("json")) {
+                    System.err.println("Unknown stats format '" + arg + "'");
+                    throw new UsageException();
+                }
+                mStats = new PhaseStats(true);
+                mStatsJson = format.equals("json");
+            } else if (arg.equals("--history")) {
+                mHistory = true;
+            } else if (arg.equals("--header-counts")) {
+                mHeaderCounts = true;
+            } else if (arg.equals("--external-refs") || arg.startsWith("--external-refs=")) {
+                // Without a format, it follows --format.
+                mExternalRefs = arg.indexOf('=') >= 0 ? arg.substring(arg.indexOf('=') + 1) : "";
+                if (!mExternalRefs.isEmpty() && !mExternalRefs.equals("brief") &&
+                        !mExternalRefs.equals("xml") && !mExternalRefs.equals("tsv") &&
+                        !mExternalRefs.equals("json")) {
+                    System.err.println("Unknown external references format '" + arg + "'");
+                    throw new UsageException();
+                }
+            } else if (arg.equals("--package-counts")) {
+                mPackageCounts = true;
+            } else if (arg.startsWith("--max-depth=")) {
+                try {
+                    mMaxDepth = Integer.parseInt(arg.substring(arg.indexOf('=') + 1));
+                } catch (NumberFormatException nfe) {
+                    mMaxDepth = -1;
+                }
+                if (mMaxDepth < 1) {
+                    System.err.println("Bad max depth '" + arg + "'");
+                    throw new UsageException();
+                }
+            } else if (arg.equals("--include-classes")) {
+                mIncludeClasses = true;
+            } else if (arg.startsWith("--include=") || arg.startsWith("--package-filter=")) {
+                // --package-filter is the older name, from when it only
+                // applied to the package counts.
+                mIncludePrefixes = addPrefixes(mIncludePrefixes, arg);
+            } else if (arg.startsWith("--exclude=") || arg.startsWith("--package-exclude=")) {
+                mExcludePrefixes = addPrefixes(mExcludePrefixes, arg);
             } else {
                 System.err.println("Unknown option '" + arg + "'");
                 throw new UsageException();
             }
         }
 
+        if (mMemoryBudget != 0 && (mCompare == Compare.ALL || mHistory)) {
+            System.err.println("--memory-budget only works with --compare=previous or baseline");
+            throw new UsageException();
+        }
+
+        if (mExternalRefs != null && (mCompare == Compare.ALL || mHistory)) {
+            System.err.println("--external-refs only works with --compare=previous or baseline");
+            throw new UsageException();
+        }
+
+        if (mExternalRefs != null) {
+            // The lists and the diffs share the output, so they share the
+            // format too: brief and xml are text.
+            if (mExternalRefs.isEmpty()) {
+                mExternalRefs = mFormat == ReportWriter.Format.TEXT ?
+                        "brief" : mFormat.name().toLowerCase(Locale.ROOT);
+            }
+            ReportWriter.Format format = mExternalRefs.equals("brief") || mExternalRefs.equals("xml") ?
+                    ReportWriter.Format.TEXT :
+                    ReportWriter.Format.valueOf(mExternalRefs.toUpperCase(Locale.ROOT));
+            if (formatGiven && format != mFormat) {
+                System.err.println("--external-refs=" + mExternalRefs + " doesn't go with --format=" +
+                        mFormat.name().toLowerCase(Locale.ROOT));
+                throw new UsageException();
+            }
+            mFormat = format;
+        }
+
+        if (mIncludePrefixes != null || mExcludePrefixes != null) {
+            mTypeFilter = new TypeFilter(mIncludePrefixes, mExcludePrefixes);
+        }
+
+        if (mPackageCounts) {
+            mPackageOptions = new PackageTrie.Options(mMaxDepth, mIncludeClasses);
+        }
+
         int fileCount = args.length - idx;
         if (fileCount == 0) {
             throw new UsageException();
@@ -426,10 +1572,93 @@ public class Main {
         return inputFileNames;
     }
 
+    /**
+     * Returns the given class name prefixes plus the comma-separated ones
+     * of an option.
+     *
+     * @param prefixes those from earlier options, or null.
+     */
+    private static String[] addPrefixes(String[] prefixes, String arg) {
+        String[] added = arg.substring(arg.indexOf('=') + 1).split(",");
+        if (prefixes == null) {
+            return added;
+        }
+        String[] all = Arrays.copyOf(prefixes, prefixes.length + added.length);
+        System.arraycopy(added, 0, all, prefixes.length, added.length);
+        return all;
+    }
+
+    /**
+     * Parses a byte count such as "512k", "64m" or "1g", which must be at
+     * least one byte and fit in a long.
+     */
+    static long parseSize(String size) {
+        long unit = 1;
+        String digits = size.toLowerCase();
+        if (digits.endsWith("k")) {
+            unit = 1024;
+        } else if (digits.endsWith("m")) {
+            unit = 1024 * 1024;
+        } else if (digits.endsWith("g")) {
+            unit = 1024 * 1024 * 1024;
+        }
+        if (unit != 1) {
+            digits = digits.substring(0, digits.length() - 1);
+        }
+        try {
+            long count = Long.parseLong(digits);
+            if (count < 1) {
+                throw new NumberFormatException();
+            }
+            return Math.multiplyExact(count, unit);
+        } catch (NumberFormatException | ArithmeticException e) {
+            System.err.println("Bad size '" + size + "'");
+            throw new UsageException();
+        }
+    }
+
     private void usage() {
         System.err.print(
                 "DEX per-package/class method diff v1.0\n" +
-                        "Usage: dex-method-diff --mapping=<mapping file,> <file.{dex,apk,jar,directory}> ...\n"
+                        "Usage: dex-method-diff --mapping=<mapping file,> <file.{dex,apk,jar,directory}> ...\n" +
+                        "Options:\n" +
+                        "  --threads=<n>          number of worker threads (default: one per CPU)\n" +
+                        "  --output=<file>        write the report here instead of to stdout\n" +
+                        "  --format=<format>      text (default), tsv or json (one record per line)\n" +
+                        "  --cache-dir=<dir>      keep indexed mapping files and the signatures of each\n" +
+                        "                         dex here, and reuse them in later runs\n" +
+                        "  --buffer-limit=<size>  dex bytes (e.g. 64m) inflated in memory by all threads\n" +
+                        "                         at once; the rest go through temp files (default 256m)\n" +
+                        "  --memory-budget=<size> sort signatures in temp files, holding about this much\n" +
+                        "                         (e.g. 64m) of them in memory; no --compare=all or --history\n" +
+                        "  --compare=<inputs>     previous (default): diff each input against the one\n" +
+                        "                         before it; baseline: against the first; all: every pair\n" +
+                        "  --include=<prefix,>    only look at classes (by original name) starting with these,\n" +
+                        "                         in the totals, diffs and package counts alike\n" +
+                        "  --exclude=<prefix,>    leave out classes starting with these\n" +
+                        "  --stats[=json]         print the time, CPU time, allocations and item count of\n" +
+                        "                         each phase and dex to stderr, as a table or JSON lines\n" +
+                        "  --history              list the first and last input of every class and method\n" +
+                        "                         that isn't in all of them\n" +
+                        "  --header-counts        only report the method_ids, field_ids and class_defs\n" +
+                        "                         sizes of each dex and input, read from the dex headers\n" +
+                        "  --external-refs[=<format>]   list the classes, fields and methods each input\n" +
+                        "                         uses but doesn't define, and diff them between inputs\n" +
+                        "                         like --compare; brief (the default) or xml (a single\n" +
+                        "                         input) with --format=text, or tsv or json\n" +
+                        "  --package-counts       also report method counts per package, and their changes;\n" +
+                        "                         methods referenced by several dex files count in each\n" +
+                        "  --max-depth=<n>        with --package-counts, how many package levels to report\n" +
+                        "  --include-classes      with --package-counts, count per class too\n" +
+                        "  --package-filter=<prefix,>   the same as --include\n" +
+                        "  --package-exclude=<prefix,>  the same as --exclude\n" +
+                        "Daemon, keeping the JVM and what it has read between runs:\n" +
+                        "  dex-method-diff --daemon[=<port>] [--cache-size=<size>]\n" +
+                        "                         listen on a loopback port (default 7351), caching up to\n" +
+                        "                         about <size> (default 512m) of mappings and signatures\n" +
+                        "  dex-method-diff --connect=<port> <options and files>\n" +
+                        "                         have the daemon run the rest, or run it here if there's\n" +
+                        "                         none; --connect=<port> --stop-daemon stops it\n"
         );
     }
 
@@ -443,7 +1672,7 @@ public class Main {
     private List<String> collectFileNames(String[] inputFileNames) {
         List<String> fileNames = new ArrayList<String>();
         for (String inputFileName : inputFileNames) {
-            File file = new File(inputFileName);
+            File file = new File(path(inputFileName));
             if (file.isDirectory()) {
                 String dirPath = file.getAbsolutePath();
                 for (String fileInDir : file.list()) {
@@ -456,6 +1685,106 @@ public class Main {
         return fileNames;
     }
 
-    private static class UsageException extends RuntimeException {
+    /**
+     * Returns a file name as seen from the working directory.  Names are
+     * left as they are when that is the current directory, so they are
+     * reported as given.
+     */
+    private String path(String fileName) {
+        if (mWorkingDir == null || new File(fileName).isAbsolute()) {
+            return fileName;
+        }
+        return new File(mWorkingDir, fileName).getPath();
+    }
+
+    /**
+     * The formatted (and unmapped) classes and methods of one DEX, or of a
+     * whole input file.  Once a DEX is processed its sets are replaced by
+     * their ids; an input file only has the combined ids, and the counts
+     * before unmapping.
+     */
+    static class InputResult {
+        Set<String> methods = new HashSet<>();
+        Set<String> classes = new HashSet<>();
+
+        int[] methodIds;
+        int[] classIds;
+
+        // The names as they appear in the DEX, if unmapped.
+        Set<String> obfuscatedMethods;
+        Set<String> obfuscatedClasses;
+        int[] obfuscatedMethodIds;
+        int[] obfuscatedClassIds;
+
+        int methodCount;
+        int classCount;
+
+        // Method counts per package, if asked for.
+        PackageTrie packages;
+
+        // The methods of each class of a DEX, by fingerprint, as ranges
+        // of the two arrays below, unless it was loaded from a snapshot.
+        Map<Long, ClassMethods> classMethods;
+        int[] classMethodIds;
+        int[] classObfuscatedMethodIds;
+
+        // With a memory budget, the sorted runs of a DEX instead of ids,
+        // and then the merged runs of an input file.
+        List<ExternalSort.Run> methodRuns;
+        List<ExternalSort.Run> classRuns;
+        List<ExternalSort.Run> obfuscatedMethodRuns;
+        List<ExternalSort.Run> obfuscatedClassRuns;
+        ExternalSort.Run methodRun;
+        ExternalSort.Run classRun;
+
+        InputResult(boolean unmapped) {
+            if (unmapped) {
+                obfuscatedMethods = new HashSet<>();
+                obfuscatedClasses = new HashSet<>();
+            }
+        }
+    }
+
+    /**
+     * The merged external references of an input file, until they are
+     * listed, and their interned brief lines for diffing.
+     */
+    private static class ExternalResult {
+        ExternalReferences references;
+        int[] classIds;
+        int[] fieldIds;
+        int[] methodIds;
+    }
+
+    /**
+     * Where the interned methods of one class are in its DEX's
+     * {@link InputResult#classMethodIds}, and the names they have in the
+     * DEX in {@link InputResult#classObfuscatedMethodIds}, if unmapped.
+     */
+    static class ClassMethods {
+        final int start;
+        final int end;
+        final int obfuscatedStart;
+        final int obfuscatedEnd;
+
+        ClassMethods(int start, int end, int obfuscatedStart, int obfuscatedEnd) {
+            this.start = start;
+            this.end = end;
+            this.obfuscatedStart = obfuscatedStart;
+            this.obfuscatedEnd = obfuscatedEnd;
+        }
+    }
+
+    /**
+     * The results of the DEX files of an input file, as they are started.
+     */
+    private static class InputDexes {
+        // By dexKey, each distinct DEX once, in archive order.
+        final Map<String, CompletableFuture<InputResult>> byKey = new LinkedHashMap<>();
+        // By entry name, or null for a bare DEX.
+        final Map<String, CompletableFuture<InputResult>> byEntry = new HashMap<>();
+    }
+
+    static class UsageException extends RuntimeException {
     }
 }
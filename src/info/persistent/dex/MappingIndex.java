@@ -0,0 +1,481 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.persistent.dex;
+
+import vendor.retrace.MappingProcessor;
+import vendor.retrace.MappingReader;
+
+import java.io.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * The parts of a ProGuard/R8 mapping file that {@link Deobfuscator} needs,
+ * in a compact binary form that can be cached on disk and mapped back in
+ * without parsing the mapping text again.
+ * <p>
+ * All names live in one sorted string pool and everything else refers to
+ * them by index.  Because the pool is sorted, comparing two indices is the
+ * same as comparing the strings, so the class and method tables are just
+ * sorted int columns that are binary-searched in place.
+ * <p>
+ * Layout (big-endian):
+ * <pre>
+ *   magic                    "dmcmap01"
+ *   string count, then (count + 1) offsets into the UTF-8 string data
+ *   string data length, then the string data (padded to 4 bytes)
+ *   class count, then the obfuscated and original name columns
+ *   method count, then the owner, obfuscated name, original class,
+ *       original type, original name and original arguments columns
+ * </pre>
+ * Methods are sorted by (owner, obfuscated name) and otherwise keep their
+ * mapping file order.  The owner is the original name of the class block
+ * the method appears in.
+ */
+class MappingIndex {
+    private static final byte[] MAGIC = "dmcmap01".getBytes(StandardCharsets.US_ASCII);
+
+    private final int mStringCount;
+    private final IntBuffer mStringOffsets;
+    private final ByteBuffer mStringData;
+    // Decoded on first use.  Strings are immutable, so the race is benign.
+    private final String[] mStrings;
+
+    private final int mClassCount;
+    private final IntBuffer mClassObfuscated;
+    private final IntBuffer mClassOriginal;
+
+    private final int mMethodCount;
+    private final IntBuffer mMethodOwner;
+    private final IntBuffer mMethodName;
+    private final IntBuffer mMethodOriginalClass;
+    private final IntBuffer mMethodOriginalType;
+    private final IntBuffer mMethodOriginalName;
+    private final IntBuffer mMethodOriginalArguments;
+
+    private MappingIndex(ByteBuffer data) throws IOException {
+        try {
+            byte[] magic = new byte[MAGIC.length];
+            data.get(magic);
+            if (!Arrays.equals(magic, MAGIC)) {
+                throw new IOException("not a mapping index");
+            }
+
+            mStringCount = data.getInt();
+            mStringOffsets = ints(data, mStringCount + 1);
+            int stringDataLength = data.getInt();
+            mStringData = slice(data, stringDataLength);
+            data.position(data.position() + ((stringDataLength + 3) & ~3));
+            mStrings = new String[mStringCount];
+
+            mClassCount = data.getInt();
+            mClassObfuscated = ints(data, mClassCount);
+            mClassOriginal = ints(data, mClassCount);
+
+            mMethodCount = data.getInt();
+            mMethodOwner = ints(data, mMethodCount);
+            mMethodName = ints(data, mMethodCount);
+            mMethodOriginalClass = ints(data, mMethodCount);
+            mMethodOriginalType = ints(data, mMethodCount);
+            mMethodOriginalName = ints(data, mMethodCount);
+            mMethodOriginalArguments = ints(data, mMethodCount);
+        } catch (BufferUnderflowException | IllegalArgumentException ex) {
+            throw new IOException("mapping index is truncated");
+        }
+    }
+
+    /**
+     * Returns the index for a mapping file.  If a cache directory is given,
+     * the index is mapped from there when a copy for this exact mapping
+     * file exists, and stored there otherwise.
+     *
+     * @param mappingHash the SHA-1 of the mapping file if already known, or
+     *                    null.
+     * @param cacheDir    the cache directory, or null to always parse.
+     * @param threads     how many threads to parse with.
+     */
+    static MappingIndex load(File mappingFile, String mappingHash, File cacheDir, int threads)
+            throws IOException {
+        if (cacheDir == null) {
+            return parse(mappingFile, threads);
+        }
+
+        if (mappingHash == null) {
+            mappingHash = Util.sha1Hex(mappingFile);
+        }
+        File cacheFile = new File(cacheDir, "mapping-" + mappingHash + ".idx");
+        if (cacheFile.isFile()) {
+            try {
+                return read(cacheFile);
+            } catch (IOException ioe) {
+                System.err.println("Ignoring bad mapping cache " + cacheFile + ": " + ioe.getMessage());
+            }
+        }
+
+        MappingIndex index = parse(mappingFile, threads);
+        try {
+            index.write(cacheFile);
+        } catch (IOException ioe) {
+            System.err.println("Unable to write mapping cache " + cacheFile + ": " + ioe.getMessage());
+        }
+        return index;
+    }
+
+    /**
+     * Parses a mapping file into a new (heap) index.  With more than one
+     * thread, the file is parsed in chunks of whole classes, with the same
+     * result.
+     */
+    static MappingIndex parse(File mappingFile, int threads) throws IOException {
+        Builder builder = new Builder();
+        new MappingReader(mappingFile).pump(builder, threads);
+        return new MappingIndex(builder.build());
+    }
+
+    /**
+     * Maps an index previously stored with {@link #write(File)}.
+     */
+    static MappingIndex read(File indexFile) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(indexFile, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            return new MappingIndex(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Stores this index.  The file is written under a temporary name and
+     * then renamed, so concurrent runs never see a partial one.
+     */
+    void write(File indexFile) throws IOException {
+        File dir = indexFile.getAbsoluteFile().getParentFile();
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("can't create " + dir);
+        }
+
+        File tempFile = File.createTempFile("mapping", ".tmp", dir);
+        try {
+            DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(tempFile), 65536));
+            try {
+                out.write(MAGIC);
+                out.writeInt(mStringCount);
+                writeInts(out, mStringOffsets);
+                int stringDataLength = mStringData.remaining();
+                out.writeInt(stringDataLength);
+                byte[] stringData = new byte[stringDataLength];
+                mStringData.duplicate().get(stringData);
+                out.write(stringData);
+                for (int i = stringDataLength; (i & 3) != 0; i++) {
+                    out.write(0);
+                }
+                out.writeInt(mClassCount);
+                writeInts(out, mClassObfuscated);
+                writeInts(out, mClassOriginal);
+                out.writeInt(mMethodCount);
+                writeInts(out, mMethodOwner);
+                writeInts(out, mMethodName);
+                writeInts(out, mMethodOriginalClass);
+                writeInts(out, mMethodOriginalType);
+                writeInts(out, mMethodOriginalName);
+                writeInts(out, mMethodOriginalArguments);
+            } finally {
+                out.close();
+            }
+
+            if (!tempFile.renameTo(indexFile)) {
+                throw new IOException("can't rename " + tempFile + " to " + indexFile);
+            }
+        } finally {
+            tempFile.delete();
+        }
+    }
+
+    /*
+     * =======================================================================
+     *      Queries
+     * =======================================================================
+     */
+
+    /**
+     * Returns the string with the given index.
+     */
+    String string(int id) {
+        String string = mStrings[id];
+        if (string == null) {
+            int start = mStringOffsets.get(id);
+            byte[] bytes = new byte[mStringOffsets.get(id + 1) - start];
+            ByteBuffer data = mStringData.duplicate();
+            data.position(start);
+            data.get(bytes);
+            string = new String(bytes, StandardCharsets.UTF_8);
+            mStrings[id] = string;
+        }
+        return string;
+    }
+
+    /**
+     * Returns the index of the given string, or -1 if it isn't in the pool.
+     */
+    int findString(String string) {
+        int low = 0;
+        int high = mStringCount - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int cmp = string(mid).compareTo(string);
+            if (cmp < 0) {
+                low = mid + 1;
+            } else if (cmp > 0) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the original name of an obfuscated class, or null if the
+     * mapping doesn't rename it.
+     */
+    String originalClassName(String className) {
+        int id = findString(className);
+        if (id < 0) {
+            return null;
+        }
+        int index = search(mClassObfuscated, null, mClassCount, id, 0);
+        return index < 0 ? null : string(mClassOriginal.get(index));
+    }
+
+    /**
+     * Returns the first method with the given owner and obfuscated name
+     * (both string indices), or -1.  The rest follow it directly, as long
+     * as {@link #methodOwner} and {@link #methodName} still match.
+     */
+    int findMethods(int ownerId, int nameId) {
+        return search(mMethodOwner, mMethodName, mMethodCount, ownerId, nameId);
+    }
+
+    int methodCount() {
+        return mMethodCount;
+    }
+
+    int methodOwner(int index) {
+        return mMethodOwner.get(index);
+    }
+
+    int methodName(int index) {
+        return mMethodName.get(index);
+    }
+
+    String methodOriginalClass(int index) {
+        return string(mMethodOriginalClass.get(index));
+    }
+
+    String methodOriginalType(int index) {
+        return string(mMethodOriginalType.get(index));
+    }
+
+    String methodOriginalName(int index) {
+        return string(mMethodOriginalName.get(index));
+    }
+
+    String methodOriginalArguments(int index) {
+        return string(mMethodOriginalArguments.get(index));
+    }
+
+    /**
+     * Finds the first row whose (primary, secondary) key equals the given
+     * one, in columns sorted by that key.  A null secondary column only
+     * compares the primary.
+     */
+    private static int search(IntBuffer primary, IntBuffer secondary, int count,
+                              int primaryKey, int secondaryKey) {
+        int low = 0;
+        int high = count;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            int cmp = Integer.compare(primary.get(mid), primaryKey);
+            if (cmp == 0 && secondary != null) {
+                cmp = Integer.compare(secondary.get(mid), secondaryKey);
+            }
+            if (cmp < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        if (low < count && primary.get(low) == primaryKey &&
+                (secondary == null || secondary.get(low) == secondaryKey)) {
+            return low;
+        }
+        return -1;
+    }
+
+    /*
+     * =======================================================================
+     *      Basic I/O functions
+     * =======================================================================
+     */
+
+    private static ByteBuffer slice(ByteBuffer data, int length) {
+        ByteBuffer slice = data.slice();
+        slice.limit(length);
+        return slice;
+    }
+
+    private static IntBuffer ints(ByteBuffer data, int count) {
+        IntBuffer ints = slice(data, count * 4).asIntBuffer();
+        data.position(data.position() + count * 4);
+        return ints;
+    }
+
+    private static void writeInts(DataOutputStream out, IntBuffer ints) throws IOException {
+        for (int i = 0; i < ints.limit(); i++) {
+            out.writeInt(ints.get(i));
+        }
+    }
+
+    /*
+     * =======================================================================
+     *      Building
+     * =======================================================================
+     */
+
+    /**
+     * Collects mapping entries from a {@link MappingReader} and lays them
+     * out in the index format.
+     */
+    private static class Builder implements MappingProcessor {
+        // Obfuscated class name -> original class name.
+        private final Map<String, String> mClassMap = new HashMap<>();
+
+        // owner, obfuscated name, original class, type, name, arguments
+        private final List<String[]> mMethods = new ArrayList<>();
+
+        @Override
+        public boolean processClassMapping(String className, String newClassName) {
+            mClassMap.put(newClassName, className);
+
+            return true;
+        }
+
+        @Override
+        public void processFieldMapping(String className, String fieldType, String fieldName,
+                                        String newClassName, String newFieldName) {
+            // Fields aren't counted.
+        }
+
+        @Override
+        public void processMethodMapping(String className,
+                                         int firstLineNumber,
+                                         int lastLineNumber,
+                                         String methodReturnType,
+                                         String methodName,
+                                         String methodArguments,
+                                         String newClassName,
+                                         int newFirstLineNumber,
+                                         int newLastLineNumber,
+                                         String newMethodName) {
+            // Signatures carry no line number, which ReTrace only matches
+            // against methods without an obfuscated line range.
+            if (newLastLineNumber != 0) {
+                return;
+            }
+
+            mMethods.add(new String[]{newClassName, newMethodName,
+                    className, methodReturnType, methodName, methodArguments});
+        }
+
+        ByteBuffer build() {
+            SortedSet<String> pool = new TreeSet<>();
+            for (Map.Entry<String, String> entry : mClassMap.entrySet()) {
+                pool.add(entry.getKey());
+                pool.add(entry.getValue());
+            }
+            for (String[] method : mMethods) {
+                Collections.addAll(pool, method);
+            }
+
+            Map<String, Integer> ids = new HashMap<>(pool.size() * 2);
+            ByteArrayOutputStream stringData = new ByteArrayOutputStream();
+            int[] stringOffsets = new int[pool.size() + 1];
+            int id = 0;
+            for (String string : pool) {
+                ids.put(string, id);
+                stringOffsets[id++] = stringData.size();
+                byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+                stringData.write(bytes, 0, bytes.length);
+            }
+            stringOffsets[id] = stringData.size();
+
+            int[][] classes = new int[mClassMap.size()][];
+            int classIndex = 0;
+            for (Map.Entry<String, String> entry : mClassMap.entrySet()) {
+                classes[classIndex++] = new int[]{ids.get(entry.getKey()), ids.get(entry.getValue())};
+            }
+            Arrays.sort(classes, (a, b) -> Integer.compare(a[0], b[0]));
+
+            int[][] methods = new int[mMethods.size()][];
+            for (int i = 0; i < methods.length; i++) {
+                String[] method = mMethods.get(i);
+                methods[i] = new int[method.length];
+                for (int j = 0; j < method.length; j++) {
+                    methods[i][j] = ids.get(method[j]);
+                }
+            }
+            // stable, so candidates keep their mapping file order
+            Arrays.sort(methods, (a, b) -> {
+                int cmp = Integer.compare(a[0], b[0]);
+                return cmp != 0 ? cmp : Integer.compare(a[1], b[1]);
+            });
+
+            int stringDataLength = stringData.size();
+            ByteBuffer data = ByteBuffer.allocate(MAGIC.length +
+                    4 + stringOffsets.length * 4 +
+                    4 + ((stringDataLength + 3) & ~3) +
+                    4 + classes.length * 2 * 4 +
+                    4 + methods.length * 6 * 4);
+            data.put(MAGIC);
+            data.putInt(pool.size());
+            data.asIntBuffer().put(stringOffsets);
+            data.position(data.position() + stringOffsets.length * 4);
+            data.putInt(stringDataLength);
+            data.put(stringData.toByteArray());
+            data.position(data.position() + ((stringDataLength + 3) & ~3) - stringDataLength);
+            data.putInt(classes.length);
+            for (int column = 0; column < 2; column++) {
+                for (int[] row : classes) {
+                    data.putInt(row[column]);
+                }
+            }
+            data.putInt(methods.length);
+            for (int column = 0; column < 6; column++) {
+                for (int[] row : methods) {
+                    data.putInt(row[column]);
+                }
+            }
+
+            data.flip();
+            return data;
+        }
+    }
+}
@@ -0,0 +1,292 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.persistent.dex;
+
+import java.util.Arrays;
+
+/**
+ * Method counts per package, as a trie of name segments.  Node 0 is the
+ * root (the default package); every other node is one segment below its
+ * parent.  Nodes are plain indices into int columns, and a parent always
+ * has a smaller index than its children.
+ * <p>
+ * Each node counts the methods declared directly in it; {@link #totals()}
+ * adds up the subtrees.  With a depth limit, deeper names are counted in
+ * their ancestor at that depth.  With classes included, a class (and each
+ * of its inner classes) is one more level below its package.
+ * <p>
+ * Not thread-safe; tries filled on different threads are combined with
+ * {@link #addAll(PackageTrie)}.
+ */
+class PackageTrie {
+    private final Options mOptions;
+
+    private int mSize = 1;
+    private String[] mSegments = new String[64];
+    private int[] mParents = new int[64];
+    private int[] mDepths = new int[64];
+    private int[] mCounts = new int[64];
+
+    // Open-addressed hash table of (parent, segment) -> node + 1, 0 meaning
+    // empty.
+    private int[] mSlots = new int[128];
+
+    /**
+     * How finely to count methods.  Which classes are counted at all is up
+     * to the {@link TypeFilter}, as for everything else.
+     */
+    static class Options {
+        final int maxDepth;
+        final boolean includeClasses;
+
+        /**
+         * @param maxDepth how many segments to keep; 0 for no limit.
+         */
+        Options(int maxDepth, boolean includeClasses) {
+            this.maxDepth = maxDepth;
+            this.includeClasses = includeClasses;
+        }
+
+        /**
+         * Returns a string that differs whenever the options would give
+         * different counts, for keying cached results.
+         */
+        String key() {
+            return "depth=" + maxDepth + " classes=" + includeClasses;
+        }
+    }
+
+    PackageTrie(Options options) {
+        mOptions = options;
+        mSegments[0] = "";
+        mParents[0] = -1;
+    }
+
+    Options getOptions() {
+        return mOptions;
+    }
+
+    int size() {
+        return mSize;
+    }
+
+    /**
+     * Returns the node that methods of a dotted class name are counted in.
+     * Callers look this up once per class and then {@link #add(int, int)}
+     * to it.
+     */
+    int nodeForClass(String className) {
+        int classStart = className.lastIndexOf('.') + 1;
+        int end = mOptions.includeClasses ? className.length() : classStart - 1;
+        int node = 0;
+        int start = 0;
+        while (start < end && (mOptions.maxDepth == 0 || mDepths[node] < mOptions.maxDepth)) {
+            int next = nextSeparator(className, start, end, classStart);
+            node = child(node, className.substring(start, next), true);
+            start = next + 1;
+        }
+        return node;
+    }
+
+    /**
+     * Adds to the count of a node.
+     */
+    void add(int node, int count) {
+        mCounts[node] += count;
+    }
+
+    /**
+     * Adds the counts of another trie, with the same options, to this one.
+     *
+     * @return the node in this trie for each node of the other one.
+     */
+    int[] addAll(PackageTrie other) {
+        int[] nodes = new int[other.mSize];
+        for (int i = 1; i < other.mSize; i++) {
+            nodes[i] = child(nodes[other.mParents[i]], other.mSegments[i], true);
+        }
+        for (int i = 0; i < other.mSize; i++) {
+            mCounts[nodes[i]] += other.mCounts[i];
+        }
+        return nodes;
+    }
+
+    /**
+     * Returns the number of methods declared directly in a node.
+     */
+    int count(int node) {
+        return mCounts[node];
+    }
+
+    int parent(int node) {
+        return mParents[node];
+    }
+
+    int depth(int node) {
+        return mDepths[node];
+    }
+
+    String segment(int node) {
+        return mSegments[node];
+    }
+
+    /**
+     * Returns the dotted name of a node, "" for the root.
+     */
+    String name(int node) {
+        if (node == 0) {
+            return "";
+        }
+        StringBuilder sb = new StringBuilder(mSegments[node]);
+        for (int parent = mParents[node]; parent != 0; parent = mParents[parent]) {
+            sb.insert(0, '.').insert(0, mSegments[parent]);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Returns the method count of each node including everything below it.
+     */
+    int[] totals() {
+        int[] totals = Arrays.copyOf(mCounts, mSize);
+        for (int i = mSize - 1; i > 0; i--) {
+            totals[mParents[i]] += totals[i];
+        }
+        return totals;
+    }
+
+    /**
+     * Returns the nodes in depth-first order, each node's children sorted
+     * by name.
+     */
+    int[] preorder() {
+        // Sorting all nodes by (parent, segment) groups siblings in order.
+        Integer[] sorted = new Integer[mSize - 1];
+        for (int i = 1; i < mSize; i++) {
+            sorted[i - 1] = i;
+        }
+        Arrays.sort(sorted, (a, b) -> {
+            int parentA = mParents[a];
+            int parentB = mParents[b];
+            return parentA != parentB ?
+                    Integer.compare(parentA, parentB) :
+                    mSegments[a].compareTo(mSegments[b]);
+        });
+        int[] firstChild = new int[mSize];
+        int[] nextSibling = new int[mSize];
+        Arrays.fill(firstChild, -1);
+        Arrays.fill(nextSibling, -1);
+        for (int i = sorted.length - 1; i >= 0; i--) {
+            int node = sorted[i];
+            nextSibling[node] = firstChild[mParents[node]];
+            firstChild[mParents[node]] = node;
+        }
+
+        int[] order = new int[mSize];
+        int[] stack = new int[mSize];
+        int count = 0;
+        int top = 0;
+        stack[top++] = 0;
+        while (top > 0) {
+            int node = stack[--top];
+            order[count++] = node;
+            // Push the children last first, so they pop in order.
+            int childCount = 0;
+            for (int child = firstChild[node]; child != -1; child = nextSibling[child]) {
+                stack[top + childCount++] = child;
+            }
+            for (int i = 0, j = childCount - 1; i < j; i++, j--) {
+                int swap = stack[top + i];
+                stack[top + i] = stack[top + j];
+                stack[top + j] = swap;
+            }
+            top += childCount;
+        }
+        return order;
+    }
+
+    /**
+     * Returns the end of the segment starting at the given index: the next
+     * '.', or within the class name itself, the '$' of an inner class.
+     */
+    private static int nextSeparator(String className, int start, int end, int classStart) {
+        for (int i = start; i < end; i++) {
+            char ch = className.charAt(i);
+            if (ch == '.' || (ch == '$' && i >= classStart && i > start)) {
+                return i;
+            }
+        }
+        return end;
+    }
+
+    /**
+     * Returns the child of a node with the given segment, adding it if it
+     * doesn't exist yet and {@code create} is set, or -1.
+     */
+    int child(int parent, String segment, boolean create) {
+        int mask = mSlots.length - 1;
+        int slot = hash(parent, segment) & mask;
+        while (true) {
+            int entry = mSlots[slot];
+            if (entry == 0) {
+                break;
+            }
+            int node = entry - 1;
+            if (mParents[node] == parent && mSegments[node].equals(segment)) {
+                return node;
+            }
+            slot = (slot + 1) & mask;
+        }
+        if (!create) {
+            return -1;
+        }
+
+        int node = mSize++;
+        if (node == mSegments.length) {
+            int capacity = node * 2;
+            mSegments = Arrays.copyOf(mSegments, capacity);
+            mParents = Arrays.copyOf(mParents, capacity);
+            mDepths = Arrays.copyOf(mDepths, capacity);
+            mCounts = Arrays.copyOf(mCounts, capacity);
+        }
+        mSegments[node] = segment;
+        mParents[node] = parent;
+        mDepths[node] = mDepths[parent] + 1;
+        mSlots[slot] = node + 1;
+
+        if (mSize * 2 > mSlots.length) {
+            rehash(mSlots.length * 2);
+        }
+        return node;
+    }
+
+    private void rehash(int capacity) {
+        int[] slots = new int[capacity];
+        int mask = capacity - 1;
+        for (int node = 1; node < mSize; node++) {
+            int slot = hash(mParents[node], mSegments[node]) & mask;
+            while (slots[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            slots[slot] = node + 1;
+        }
+        mSlots = slots;
+    }
+
+    private static int hash(int parent, String segment) {
+        int hash = (segment.hashCode() + parent * 31) * 0x9e3779b9;
+        return hash ^ (hash >>> 16);
+    }
+}
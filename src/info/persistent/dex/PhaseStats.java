@@ -0,0 +1,258 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.persistent.dex;
+
+import java.io.File;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.ThreadMXBean;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Records the wall time, CPU time, allocated bytes and item count of each
+ * phase of a run, per input file and DEX, for {@code --stats}.  A phase is
+ * timed on the thread that runs it, so CPU time and allocations are that
+ * thread's; where the JVM can't measure them they are reported as -1.
+ * <p>
+ * Timers may be started and stopped on any thread.  A disabled instance
+ * hands out timers that do nothing, so callers don't have to check.
+ */
+class PhaseStats {
+    private static final Timer NO_TIMER = new Timer(null, null, null, null);
+
+    private final boolean mEnabled;
+    private final ThreadMXBean mThreads = ManagementFactory.getThreadMXBean();
+    private final boolean mCpuTime;
+    private final boolean mAllocatedBytes;
+
+    private final Queue<Record> mRecords = new ConcurrentLinkedQueue<>();
+
+    /**
+     * One stopped timer.
+     */
+    private static class Record {
+        final String phase;
+        final String fileName;
+        final String entryName;
+        final long wallNanos;
+        final long cpuNanos;
+        final long allocatedBytes;
+        final long items;
+
+        Record(String phase, String fileName, String entryName, long wallNanos, long cpuNanos,
+               long allocatedBytes, long items) {
+            this.phase = phase;
+            this.fileName = fileName;
+            this.entryName = entryName;
+            this.wallNanos = wallNanos;
+            this.cpuNanos = cpuNanos;
+            this.allocatedBytes = allocatedBytes;
+            this.items = items;
+        }
+    }
+
+    /**
+     * Measures one phase from when it is started until {@link #stop}.
+     */
+    static class Timer {
+        private final PhaseStats mStats;
+        private final String mPhase;
+        private final String mFileName;
+        private final String mEntryName;
+        private final long mWallStart;
+        private final long mCpuStart;
+        private final long mAllocatedStart;
+
+        private Timer(PhaseStats stats, String phase, String fileName, String entryName) {
+            mStats = stats;
+            mPhase = phase;
+            mFileName = fileName;
+            mEntryName = entryName;
+            mWallStart = System.nanoTime();
+            mCpuStart = stats != null ? stats.cpuTime() : -1;
+            mAllocatedStart = stats != null ? stats.allocatedBytes() : -1;
+        }
+
+        String getFileName() {
+            return mFileName;
+        }
+
+        String getEntryName() {
+            return mEntryName;
+        }
+
+        /**
+         * Records the phase.
+         *
+         * @param items how many things (bytes, methods, entries...) it
+         *              handled, or -1.
+         */
+        void stop(long items) {
+            if (mStats == null) {
+                return;
+            }
+            long wallNanos = System.nanoTime() - mWallStart;
+            long cpuNanos = mCpuStart >= 0 ? mStats.cpuTime() - mCpuStart : -1;
+            long allocatedBytes = mAllocatedStart >= 0 ? mStats.allocatedBytes() - mAllocatedStart : -1;
+            mStats.mRecords.add(new Record(mPhase, mFileName, mEntryName, wallNanos, cpuNanos,
+                    allocatedBytes, items));
+        }
+    }
+
+    /**
+     * @param enabled whether to record anything; an enabled instance
+     *                starts the peak heap usage over, so that it is this
+     *                run's even in a daemon's long-lived JVM.
+     */
+    PhaseStats(boolean enabled) {
+        mEnabled = enabled;
+        mCpuTime = enabled && mThreads.isCurrentThreadCpuTimeSupported() && mThreads.isThreadCpuTimeEnabled();
+        mAllocatedBytes = enabled && mThreads instanceof com.sun.management.ThreadMXBean &&
+                ((com.sun.management.ThreadMXBean) mThreads).isThreadAllocatedMemorySupported() &&
+                ((com.sun.management.ThreadMXBean) mThreads).isThreadAllocatedMemoryEnabled();
+        if (enabled) {
+            for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+                if (pool.getType() == MemoryType.HEAP && pool.isValid()) {
+                    pool.resetPeakUsage();
+                }
+            }
+        }
+    }
+
+    boolean isEnabled() {
+        return mEnabled;
+    }
+
+    /**
+     * Starts timing a phase on the current thread.
+     *
+     * @param fileName  the input file, or null if the phase isn't about
+     *                  one.
+     * @param entryName the DEX in it, or null for the whole file.
+     */
+    Timer start(String phase, String fileName, String entryName) {
+        return mEnabled ? new Timer(this, phase, fileName, entryName) : NO_TIMER;
+    }
+
+    private long cpuTime() {
+        return mCpuTime ? mThreads.getCurrentThreadCpuTime() : -1;
+    }
+
+    private long allocatedBytes() {
+        return mAllocatedBytes ?
+                ((com.sun.management.ThreadMXBean) mThreads).getThreadAllocatedBytes(
+                        Thread.currentThread().getId()) :
+                -1;
+    }
+
+    /**
+     * Writes every record, in the order the phases finished, then the
+     * totals per phase and the peak heap usage since this was created.
+     *
+     * @param json one JSON object per line instead of a table.
+     */
+    void write(PrintStream out, boolean json) {
+        List<Record> records = new ArrayList<>(mRecords);
+        Map<String, long[]> totals = new LinkedHashMap<>();
+        for (Record record : records) {
+            long[] total = totals.get(record.phase);
+            if (total == null) {
+                total = new long[]{0, 0, 0, 0, 0};
+                totals.put(record.phase, total);
+            }
+            total[0]++;
+            total[1] += record.wallNanos;
+            total[2] = add(total[2], record.cpuNanos);
+            total[3] = add(total[3], record.allocatedBytes);
+            total[4] = add(total[4], record.items);
+        }
+        long peakHeap = peakHeapBytes();
+
+        if (json) {
+            for (Record record : records) {
+                out.println("{\"type\":\"phase\",\"phase\":" + ReportWriter.json(record.phase) +
+                        ",\"file\":" + ReportWriter.json(record.fileName != null ? record.fileName : "") +
+                        ",\"dex\":" + ReportWriter.json(record.entryName != null ? record.entryName : "") +
+                        ",\"wallNanos\":" + record.wallNanos + ",\"cpuNanos\":" + record.cpuNanos +
+                        ",\"allocatedBytes\":" + record.allocatedBytes + ",\"items\":" + record.items + "}");
+            }
+            for (Map.Entry<String, long[]> entry : totals.entrySet()) {
+                long[] total = entry.getValue();
+                out.println("{\"type\":\"phaseTotal\",\"phase\":" + ReportWriter.json(entry.getKey()) +
+                        ",\"count\":" + total[0] + ",\"wallNanos\":" + total[1] + ",\"cpuNanos\":" + total[2] +
+                        ",\"allocatedBytes\":" + total[3] + ",\"items\":" + total[4] + "}");
+            }
+            out.println("{\"type\":\"heap\",\"peakBytes\":" + peakHeap + "}");
+            return;
+        }
+
+        String format = "%-14s %-30s %-14s %10s %10s %10s %10s%n";
+        out.printf(format, "phase", "file", "dex", "wall ms", "cpu ms", "alloc MB", "items");
+        for (Record record : records) {
+            out.printf(format, record.phase,
+                    record.fileName != null ? new File(record.fileName).getName() : "",
+                    record.entryName != null ? record.entryName : "",
+                    millis(record.wallNanos), millis(record.cpuNanos), megabytes(record.allocatedBytes),
+                    count(record.items));
+        }
+        out.println();
+        out.printf(format, "total", "", "runs", "wall ms", "cpu ms", "alloc MB", "items");
+        for (Map.Entry<String, long[]> entry : totals.entrySet()) {
+            long[] total = entry.getValue();
+            out.printf(format, entry.getKey(), "", total[0], millis(total[1]), millis(total[2]),
+                    megabytes(total[3]), count(total[4]));
+        }
+        out.println();
+        out.println("peak heap: " + megabytes(peakHeap) + " MB");
+    }
+
+    /**
+     * Adds a measurement to a total; either being -1 (unknown) makes the
+     * total unknown.
+     */
+    private static long add(long total, long value) {
+        return total < 0 || value < 0 ? -1 : total + value;
+    }
+
+    /**
+     * Returns the sum of the peak usage of each heap pool since they were
+     * last reset, which is an upper bound on the peak heap usage.  It is
+     * the whole JVM's, including anything it held before the run.
+     */
+    private static long peakHeapBytes() {
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP && pool.getPeakUsage() != null) {
+                peak += pool.getPeakUsage().getUsed();
+            }
+        }
+        return peak;
+    }
+
+    private static String millis(long nanos) {
+        return nanos < 0 ? "-" : String.format(Locale.ROOT, "%.1f", nanos / 1e6);
+    }
+
+    private static String megabytes(long bytes) {
+        return bytes < 0 ? "-" : String.format(Locale.ROOT, "%.1f", bytes / (1024.0 * 1024));
+    }
+
+    private static String count(long items) {
+        return items < 0 ? "-" : Long.toString(items);
+    }
+}
@@ -0,0 +1,442 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.persistent.dex;
+
+import vendor.com.android.dexdeps.ExternalReferences;
+import vendor.com.android.dexdeps.Output;
+
+import java.io.*;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writes the report through a large buffer, a line at a time, as it is
+ * produced.  Besides the human-readable text there are two line-oriented
+ * formats meant for other tools:
+ * <ul>
+ * <li>tsv: one tab-separated row per input, package, added/removed entry,
+ * history entry or external reference, with the record type in the first
+ * column.</li>
+ * <li>json: one JSON object per line with the same records.</li>
+ * </ul>
+ * Progress messages ("unmapping...") only appear in the text format.
+ */
+class ReportWriter implements Closeable {
+
+    enum Format {
+        TEXT, TSV, JSON
+    }
+
+    private static final int BUFFER_SIZE = 1 << 20;
+
+    private final Writer mOut;
+    private final Format mFormat;
+
+    private String mFileName;
+    private long mFileSize;
+
+    private boolean mPackageDelta;
+
+    private String mDiffKind;
+    private String mDiffOld;
+    private String mDiffNew;
+    private String mChange;
+
+    private String mHistoryKind;
+
+    /**
+     * @param out where to write; closed along with this writer.
+     */
+    ReportWriter(OutputStream out, Format format) {
+        // Text goes out like System.out did; the machine formats are UTF-8.
+        Charset charset = format == Format.TEXT ? Charset.defaultCharset() : StandardCharsets.UTF_8;
+        mOut = new BufferedWriter(new OutputStreamWriter(out, charset), BUFFER_SIZE);
+        mFormat = format;
+    }
+
+    /**
+     * Opens a writer on a file, or on standard output if the name is null.
+     */
+    static ReportWriter open(String fileName, Format format) throws IOException {
+        OutputStream out = fileName == null ?
+                new FileOutputStream(FileDescriptor.out) :
+                new FileOutputStream(fileName);
+        return new ReportWriter(out, format);
+    }
+
+    /**
+     * Starts the report for an input file.
+     */
+    void inputStarted(String fileName, long fileSize) throws IOException {
+        mFileName = fileName;
+        mFileSize = fileSize;
+        if (mFormat == Format.TEXT) {
+            println("Processing " + fileName);
+            println("file size:" + Util.readableFileSize(fileSize));
+        }
+    }
+
+    /**
+     * Reports the class and method totals of the current input.
+     */
+    void inputTotals(int classCount, int methodCount) throws IOException {
+        switch (mFormat) {
+            case TEXT:
+                println("total classes[" + classCount + "]");
+                println("total methods[" + methodCount + "]");
+                break;
+            case TSV:
+                println("input\t" + tsv(mFileName) + "\t" + mFileSize + "\t" + classCount + "\t" + methodCount);
+                break;
+            case JSON:
+                println("{\"type\":\"input\",\"file\":" + json(mFileName) +
+                        ",\"fileSize\":" + mFileSize +
+                        ",\"classes\":" + classCount +
+                        ",\"methods\":" + methodCount + "}");
+                break;
+        }
+    }
+
+    /**
+     * Reports the table sizes in the header of one DEX in the current input.
+     *
+     * @param entryName the DEX entry, or null if the input is the DEX.
+     */
+    void dexHeaderCounts(String entryName, int methodIds, int fieldIds, int classDefs) throws IOException {
+        switch (mFormat) {
+            case TEXT:
+                println((entryName != null ? entryName : "dex") + " method_ids[" + methodIds +
+                        "] field_ids[" + fieldIds + "] class_defs[" + classDefs + "]");
+                break;
+            case TSV:
+                println("dex\t" + tsv(mFileName) + "\t" + tsv(entryName != null ? entryName : "") +
+                        "\t" + methodIds + "\t" + fieldIds + "\t" + classDefs);
+                break;
+            case JSON:
+                println("{\"type\":\"dex\",\"file\":" + json(mFileName) +
+                        ",\"entry\":" + (entryName != null ? json(entryName) : "null") +
+                        ",\"methodIds\":" + methodIds +
+                        ",\"fieldIds\":" + fieldIds +
+                        ",\"classDefs\":" + classDefs + "}");
+                break;
+        }
+    }
+
+    /**
+     * Reports the header table sizes of the current input, summed over its
+     * DEX files.
+     */
+    void inputHeaderCounts(int dexCount, int methodIds, int fieldIds, int classDefs) throws IOException {
+        switch (mFormat) {
+            case TEXT:
+                println("total dex[" + dexCount + "] method_ids[" + methodIds +
+                        "] field_ids[" + fieldIds + "] class_defs[" + classDefs + "]");
+                break;
+            case TSV:
+                println("counts\t" + tsv(mFileName) + "\t" + mFileSize + "\t" + dexCount +
+                        "\t" + methodIds + "\t" + fieldIds + "\t" + classDefs);
+                break;
+            case JSON:
+                println("{\"type\":\"counts\",\"file\":" + json(mFileName) +
+                        ",\"fileSize\":" + mFileSize +
+                        ",\"dexes\":" + dexCount +
+                        ",\"methodIds\":" + methodIds +
+                        ",\"fieldIds\":" + fieldIds +
+                        ",\"classDefs\":" + classDefs + "}");
+                break;
+        }
+    }
+
+    /**
+     * Lists the external references of an input, merged across its DEX
+     * files: in TSV, a row per class, field and method; in JSON, an object
+     * per class with its fields and methods.  The text format has no
+     * records for them; {@link Output} writes them to
+     * {@link #printWriter()} in the brief or XML format instead.
+     */
+    void externalReferences(String fileName, ExternalReferences refs) throws IOException {
+        for (int i = 0; i < refs.getClassCount(); i++) {
+            String className = Output.descriptorToDot(refs.getClassName(i));
+            switch (mFormat) {
+                case TSV:
+                    println("externalClass\t" + tsv(fileName) + "\t" + tsv(className));
+                    for (int j = 0; j < refs.getFieldCount(i); j++) {
+                        println("externalField\t" + tsv(fileName) + "\t" + tsv(className) +
+                                "\t" + tsv(refs.getFieldName(i, j)) + "\t" + tsv(refs.getFieldTypeName(i, j)));
+                    }
+                    for (int j = 0; j < refs.getMethodCount(i); j++) {
+                        println("externalMethod\t" + tsv(fileName) + "\t" + tsv(className) +
+                                "\t" + tsv(refs.getMethodName(i, j)) + "\t" + tsv(refs.getMethodDescriptor(i, j)));
+                    }
+                    break;
+                case JSON:
+                    StringBuilder sb = new StringBuilder();
+                    sb.append("{\"type\":\"externalClass\",\"file\":").append(json(fileName))
+                            .append(",\"class\":").append(json(className)).append(",\"fields\":[");
+                    for (int j = 0; j < refs.getFieldCount(i); j++) {
+                        sb.append(j == 0 ? "" : ",")
+                                .append("{\"name\":").append(json(refs.getFieldName(i, j)))
+                                .append(",\"type\":").append(json(refs.getFieldTypeName(i, j))).append('}');
+                    }
+                    sb.append("],\"methods\":[");
+                    for (int j = 0; j < refs.getMethodCount(i); j++) {
+                        sb.append(j == 0 ? "" : ",")
+                                .append("{\"name\":").append(json(refs.getMethodName(i, j)))
+                                .append(",\"descriptor\":").append(json(refs.getMethodDescriptor(i, j))).append('}');
+                    }
+                    println(sb.append("]}").toString());
+                    break;
+                default:
+                    throw new IllegalStateException("no text format for external references");
+            }
+        }
+    }
+
+    /**
+     * Notes that the current input is being unmapped.
+     */
+    void unmapping() throws IOException {
+        if (mFormat == Format.TEXT) {
+            println("unmapping...");
+        }
+    }
+
+    /**
+     * Starts the per-package method counts of the current input.
+     *
+     * @param withDelta whether there's a previous input to compare with.
+     */
+    void packagesStarted(boolean withDelta) throws IOException {
+        mPackageDelta = withDelta;
+        if (mFormat == Format.TEXT) {
+            println("====package methods:" + mFileName + "====");
+        }
+    }
+
+    /**
+     * Writes the method count of a package, including its subpackages.
+     *
+     * @param name    the dotted package name, "" for the default package.
+     * @param segment the last part of the name.
+     * @param depth   the number of parts in the name.
+     * @param delta   the change since the previous input, if any.
+     */
+    void packageCount(String name, String segment, int depth, int count, int delta) throws IOException {
+        switch (mFormat) {
+            case TEXT:
+                StringBuilder sb = new StringBuilder();
+                for (int i = 0; i < depth; i++) {
+                    sb.append("    ");
+                }
+                sb.append(depth == 0 ? "<root>" : segment).append(": ").append(count);
+                if (mPackageDelta && delta != 0) {
+                    sb.append(" (").append(delta > 0 ? "+" : "").append(delta).append(')');
+                }
+                println(sb.toString());
+                break;
+            case TSV:
+                println("package\t" + tsv(mFileName) + "\t" + tsv(name) + "\t" + count + "\t" + delta);
+                break;
+            case JSON:
+                println("{\"type\":\"package\",\"file\":" + json(mFileName) + ",\"package\":" + json(name) +
+                        ",\"methods\":" + count + ",\"delta\":" + delta + "}");
+                break;
+        }
+    }
+
+    void packagesFinished() throws IOException {
+        if (mFormat == Format.TEXT) {
+            println("");
+        }
+    }
+
+    /**
+     * Starts a diff between two inputs.
+     *
+     * @param kind "class" or "method", or "external class", "external field"
+     *             or "external method".
+     */
+    void diffStarted(String kind, String oldFileName, String newFileName) throws IOException {
+        mDiffKind = kind;
+        mDiffOld = oldFileName;
+        mDiffNew = newFileName;
+        mChange = null;
+        if (mFormat == Format.TEXT) {
+            println("====" + kind + " diff old:" + oldFileName + " new:" + newFileName + "====");
+        }
+    }
+
+    /**
+     * Starts the list of entries with the given change.
+     *
+     * @param change "added" or "removed".
+     */
+    void diffSection(String change, int count) throws IOException {
+        switch (mFormat) {
+            case TEXT:
+                if (mChange != null) {
+                    println("");
+                }
+                println("<" + count + " " + change + ">");
+                break;
+            case TSV:
+                println("diff\t" + mDiffKind + "\t" + tsv(mDiffOld) + "\t" + tsv(mDiffNew) +
+                        "\t" + change + "\t" + count);
+                break;
+            case JSON:
+                println("{\"type\":\"diff\",\"kind\":\"" + mDiffKind + "\",\"old\":" + json(mDiffOld) +
+                        ",\"new\":" + json(mDiffNew) + ",\"change\":\"" + change + "\",\"count\":" + count + "}");
+                break;
+        }
+        mChange = change;
+    }
+
+    /**
+     * Writes one entry of the current section.
+     */
+    void diffEntry(String signature) throws IOException {
+        switch (mFormat) {
+            case TEXT:
+                println(signature);
+                break;
+            case TSV:
+                println(mChange + "\t" + mDiffKind + "\t" + tsv(signature));
+                break;
+            case JSON:
+                println("{\"type\":\"" + mChange + "\",\"kind\":\"" + mDiffKind + "\",\"signature\":" +
+                        json(signature) + "}");
+                break;
+        }
+    }
+
+    void diffFinished() throws IOException {
+        if (mFormat == Format.TEXT) {
+            println("");
+        }
+    }
+
+    /**
+     * Starts the list of classes or methods that come and go across the
+     * inputs.
+     *
+     * @param kind "class" or "method".
+     */
+    void historyStarted(String kind, int count) throws IOException {
+        mHistoryKind = kind;
+        if (mFormat == Format.TEXT) {
+            println("====" + kind + " history====");
+            println("<" + count + " changed>");
+        }
+    }
+
+    /**
+     * Writes the first and last input a signature appears in.
+     */
+    void historyEntry(String signature, String firstFileName, String lastFileName) throws IOException {
+        switch (mFormat) {
+            case TEXT:
+                println(signature + " [first:" + firstFileName + " last:" + lastFileName + "]");
+                break;
+            case TSV:
+                println("history\t" + mHistoryKind + "\t" + tsv(signature) + "\t" + tsv(firstFileName) +
+                        "\t" + tsv(lastFileName));
+                break;
+            case JSON:
+                println("{\"type\":\"history\",\"kind\":\"" + mHistoryKind + "\",\"signature\":" +
+                        json(signature) + ",\"first\":" + json(firstFileName) +
+                        ",\"last\":" + json(lastFileName) + "}");
+                break;
+        }
+    }
+
+    void historyFinished() throws IOException {
+        if (mFormat == Format.TEXT) {
+            println("");
+        }
+    }
+
+    /**
+     * Returns a writer for text that goes out in order with the report's
+     * own lines, such as the brief or XML lists of {@link Output}.
+     */
+    PrintWriter printWriter() {
+        return new PrintWriter(mOut);
+    }
+
+    /**
+     * Pushes out everything written so far.
+     */
+    void flush() throws IOException {
+        mOut.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        mOut.close();
+    }
+
+    private void println(String line) throws IOException {
+        mOut.write(line);
+        mOut.write(System.lineSeparator());
+    }
+
+    /**
+     * Escapes the characters that would break a TSV row.
+     */
+    private static String tsv(String value) {
+        if (value.indexOf('\t') < 0 && value.indexOf('\n') < 0 &&
+                value.indexOf('\r') < 0 && value.indexOf('\\') < 0) {
+            return value;
+        }
+        return value.replace("\\", "\\\\").replace("\t", "\\t")
+                .replace("\n", "\\n").replace("\r", "\\r");
+    }
+
+    /**
+     * Quotes a string as a JSON string literal.
+     */
+    static String json(String value) {
+        StringBuilder sb = new StringBuilder(value.length() + 2);
+        sb.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char ch = value.charAt(i);
+            switch (ch) {
+                case '"':
+                    sb.append("\\\"");
+                    break;
+                case '\\':
+                    sb.append("\\\\");
+                    break;
+                case '\n':
+                    sb.append("\\n");
+                    break;
+                case '\r':
+                    sb.append("\\r");
+                    break;
+                case '\t':
+                    sb.append("\\t");
+                    break;
+                default:
+                    if (ch < 0x20) {
+                        sb.append(String.format("\\u%04x", (int) ch));
+                    } else {
+                        sb.append(ch);
+                    }
+            }
+        }
+        sb.append('"');
+        return sb.toString();
+    }
+}
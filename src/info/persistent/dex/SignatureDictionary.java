@@ -0,0 +1,194 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.persistent.dex;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * Assigns a small integer id to each distinct class or method signature,
+ * shared by every input of a run.  A set of signatures is then just a
+ * sorted int[] of ids, and two sets are compared with a linear merge.
+ * <p>
+ * The table is open-addressed over plain int[]s, so an entry costs the
+ * String itself plus a few ints.  All methods are thread-safe.
+ */
+class SignatureDictionary {
+    private String[] mStrings = new String[1024];
+    private int mSize;
+
+    // Open-addressed hash table of id + 1, 0 meaning empty.
+    private int[] mSlots = new int[2048];
+
+    /**
+     * Interns every string in the collection and returns their ids, sorted
+     * and without duplicates.
+     */
+    synchronized int[] intern(Collection<String> strings) {
+        int[] ids = new int[strings.size()];
+        int count = 0;
+        for (String string : strings) {
+            ids[count++] = intern(string);
+        }
+        Arrays.sort(ids, 0, count);
+        return unique(ids, count);
+    }
+
+    /**
+     * Returns the id of the given string, adding it if it's new.
+     */
+    synchronized int intern(String string) {
+        int mask = mSlots.length - 1;
+        int slot = mix(string.hashCode()) & mask;
+        while (true) {
+            int entry = mSlots[slot];
+            if (entry == 0) {
+                break;
+            }
+            if (mStrings[entry - 1].equals(string)) {
+                return entry - 1;
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        int id = mSize++;
+        if (id == mStrings.length) {
+            mStrings = Arrays.copyOf(mStrings, id * 2);
+        }
+        mStrings[id] = string;
+        mSlots[slot] = id + 1;
+
+        if (mSize * 2 > mSlots.length) {
+            rehash(mSlots.length * 2);
+        }
+        return id;
+    }
+
+    /**
+     * Returns the string with the given id.
+     */
+    synchronized String get(int id) {
+        return mStrings[id];
+    }
+
+    /**
+     * Returns the strings for the given ids, sorted.
+     */
+    synchronized String[] getSorted(int[] ids) {
+        String[] strings = new String[ids.length];
+        for (int i = 0; i < ids.length; i++) {
+            strings[i] = mStrings[ids[i]];
+        }
+        Arrays.sort(strings);
+        return strings;
+    }
+
+    /**
+     * Returns the ids that are in {@code a} but not in {@code b}.  Both must
+     * be sorted, as returned by {@link #intern(Collection)}.
+     */
+    static int[] subtract(int[] a, int[] b) {
+        int[] result = new int[a.length];
+        int count = 0;
+        int j = 0;
+        for (int id : a) {
+            while (j < b.length && b[j] < id) {
+                j++;
+            }
+            if (j == b.length || b[j] != id) {
+                result[count++] = id;
+            }
+        }
+        return count == result.length ? result : Arrays.copyOf(result, count);
+    }
+
+    /**
+     * Returns the ids that are in {@code a} or {@code b}.  Both must be
+     * sorted, as returned by {@link #intern(Collection)}.
+     */
+    static int[] union(int[] a, int[] b) {
+        int[] result = new int[a.length + b.length];
+        int count = 0;
+        int i = 0;
+        int j = 0;
+        while (i < a.length && j < b.length) {
+            if (a[i] < b[j]) {
+                result[count++] = a[i++];
+            } else if (a[i] > b[j]) {
+                result[count++] = b[j++];
+            } else {
+                result[count++] = a[i++];
+                j++;
+            }
+        }
+        while (i < a.length) {
+            result[count++] = a[i++];
+        }
+        while (j < b.length) {
+            result[count++] = b[j++];
+        }
+        return count == result.length ? result : Arrays.copyOf(result, count);
+    }
+
+    /**
+     * Returns the ids that are in any of the given sorted arrays.
+     */
+    static int[] union(Collection<int[]> idSets) {
+        int length = 0;
+        for (int[] ids : idSets) {
+            length += ids.length;
+        }
+        int[] result = new int[length];
+        int count = 0;
+        for (int[] ids : idSets) {
+            System.arraycopy(ids, 0, result, count, ids.length);
+            count += ids.length;
+        }
+        Arrays.sort(result);
+        return unique(result, count);
+    }
+
+    private void rehash(int capacity) {
+        int[] slots = new int[capacity];
+        int mask = capacity - 1;
+        for (int id = 0; id < mSize; id++) {
+            int slot = mix(mStrings[id].hashCode()) & mask;
+            while (slots[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            slots[slot] = id + 1;
+        }
+        mSlots = slots;
+    }
+
+    /**
+     * Spreads the bits of a String hash, which clusters badly for the
+     * common prefixes signatures share.
+     */
+    private static int mix(int hash) {
+        hash *= 0x9e3779b9;
+        return hash ^ (hash >>> 16);
+    }
+
+    private static int[] unique(int[] sorted, int count) {
+        int length = 0;
+        for (int i = 0; i < count; i++) {
+            if (length == 0 || sorted[length - 1] != sorted[i]) {
+                sorted[length++] = sorted[i];
+            }
+        }
+        return length == sorted.length ? sorted : Arrays.copyOf(sorted, length);
+    }
+}
@@ -0,0 +1,301 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.persistent.dex;
+
+import vendor.com.android.dexdeps.DexData;
+
+/**
+ * Formats the types of one DEX image the way they appear in the report.
+ * Every method refers to its declaring class, return type and parameters
+ * by type_ids / proto_ids index, and most of them share a handful of
+ * those, so each one is formatted once, on first use, and kept by index.
+ * <p>
+ * Not thread-safe; make one per DexData.
+ */
+class SignatureFormatter {
+    private final DexData mDexData;
+
+    // Indexed by type_ids index, filled in as needed.
+    private final String[] mTypeNames;
+    private final String[] mClassNames;
+    private final String[] mDeclaringClassNames;
+    private final String[] mParameterNames;
+
+    // Indexed by proto_ids index, filled in as needed.
+    private final String[] mParameterLists;
+
+    // Types left out by the --include/--exclude filter, or null.
+    private final boolean[] mRejectedTypes;
+
+    SignatureFormatter(DexData dexData) {
+        this(dexData, null);
+    }
+
+    /**
+     * @param rejectedTypes a flag for each type_ids index whose classes
+     *                      are left out, or null to keep all of them.
+     */
+    SignatureFormatter(DexData dexData, boolean[] rejectedTypes) {
+        mDexData = dexData;
+        mRejectedTypes = rejectedTypes;
+        int typeCount = dexData.getTypeCount();
+        mTypeNames = new String[typeCount];
+        mClassNames = new String[typeCount];
+        mDeclaringClassNames = new String[typeCount];
+        mParameterNames = new String[typeCount];
+        mParameterLists = new String[dexData.getProtoCount()];
+    }
+
+    DexData getDexData() {
+        return mDexData;
+    }
+
+    int getTypeCount() {
+        return mTypeNames.length;
+    }
+
+    /**
+     * Returns true if a class is left out by the filter.
+     */
+    boolean isRejected(int typeIdx) {
+        return mRejectedTypes != null && mRejectedTypes[typeIdx];
+    }
+
+    /**
+     * Returns the dotted name of a class type, or null if the type is a
+     * primitive or an array.
+     */
+    String className(int typeIdx) {
+        String className = mClassNames[typeIdx];
+        if (className == null) {
+            String descriptor = mDexData.getTypeDescriptor(typeIdx);
+            if (descriptor.length() == 1 || descriptor.charAt(0) == '[') {
+                return null;
+            }
+            className = typeName(typeIdx);
+            mClassNames[typeIdx] = className;
+        }
+        return className;
+    }
+
+    /**
+     * Returns a type as a method's declaring class, or null (after
+     * reporting why) if the descriptor can't be one.
+     */
+    String declaringClassName(int typeIdx) {
+        String className = mDeclaringClassNames[typeIdx];
+        if (className == null) {
+            try {
+                String descriptor = mDexData.getTypeDescriptor(typeIdx);
+                className = descriptor.substring(1, descriptor.length() - 1).replace("/", ".");
+            } catch (Exception e) {
+                e.printStackTrace();
+                return null;
+            }
+            mDeclaringClassNames[typeIdx] = className;
+        }
+        return className;
+    }
+
+    /**
+     * Returns the formatted return type of a proto.
+     */
+    String returnTypeName(int protoIdx) {
+        return typeName(mDexData.getProtoReturnTypeIndex(protoIdx));
+    }
+
+    /**
+     * Returns the formatted parameters of a proto, separated by ", ".
+     */
+    String parameterList(int protoIdx) {
+        String parameterList = mParameterLists[protoIdx];
+        if (parameterList == null) {
+            int count = mDexData.getProtoParameterCount(protoIdx);
+            if (count == 0) {
+                parameterList = "";
+            } else if (count == 1) {
+                parameterList = parameterName(mDexData.getProtoParameterTypeIndex(protoIdx, 0));
+            } else {
+                StringBuilder sb = new StringBuilder();
+                for (int i = 0; i < count; i++) {
+                    if (i > 0) {
+                        sb.append(", ");
+                    }
+                    sb.append(parameterName(mDexData.getProtoParameterTypeIndex(protoIdx, i)));
+                }
+                parameterList = sb.toString();
+            }
+            mParameterLists[protoIdx] = parameterList;
+        }
+        return parameterList;
+    }
+
+    private String typeName(int typeIdx) {
+        String typeName = mTypeNames[typeIdx];
+        if (typeName == null) {
+            typeName = formatTypeElementString(mDexData.getTypeDescriptor(typeIdx));
+            mTypeNames[typeIdx] = typeName;
+        }
+        return typeName;
+    }
+
+    private String parameterName(int typeIdx) {
+        String parameterName = mParameterNames[typeIdx];
+        if (parameterName == null) {
+            parameterName = formatParamListString(mDexData.getTypeDescriptor(typeIdx));
+            mParameterNames[typeIdx] = parameterName;
+        }
+        return parameterName;
+    }
+
+    /**
+     * 标识字符	含义
+     * B	基本类型byte
+     * C	char
+     * D	double
+     * F	float
+     * I	int
+     * J	long
+     * S	short
+     * Z	boolean
+     * V	void
+     * L	对象类型，如Ljava/lang/Object;
+     *
+     * @param param
+     * @return
+     */
+    private static String formatParamListString(String param) {
+        StringBuilder resultSb = new StringBuilder();
+        int i = 0;
+        while (i < param.length()) {
+            char head = param.charAt(i);
+
+            // array
+            boolean inArray = false;
+            if (head == '[') {
+                inArray = true;
+                head = param.charAt(++i);
+            }
+
+            switch (head) {
+                case 'B':
+                    resultSb.append("byte");
+                    break;
+                case 'C':
+                    resultSb.append("char");
+                    break;
+                case 'D':
+                    resultSb.append("double");
+                    break;
+                case 'F':
+                    resultSb.append("float");
+                    break;
+                case 'J':
+                    resultSb.append("long");
+                    break;
+                case 'S':
+                    resultSb.append("short");
+                    break;
+                case 'I':
+                    resultSb.append("int");
+                    break;
+                case 'V':
+                    resultSb.append("void");
+                    break;
+                case 'Z':
+                    resultSb.append("boolean");
+                    break;
+            }
+            if (head == 'L') {
+                int objectEndMark = param.indexOf(";", i);
+                String objectStr = param.substring(i, objectEndMark);
+                resultSb.append(formatTypeElementString(objectStr));
+
+                i = objectEndMark + 1;
+            } else {
+                i++;
+            }
+
+            if (inArray) {
+                resultSb.append("[]");
+            }
+            resultSb.append(", ");
+        }
+
+        if (resultSb.length() > 0) {
+            resultSb.deleteCharAt(resultSb.length() - 1)
+                    .deleteCharAt(resultSb.length() - 1);
+        }
+        return resultSb.toString();
+    }
+
+    /**
+     * 标识字符	含义
+     * B	基本类型byte
+     * C	char
+     * D	double
+     * F	float
+     * I	int
+     * J	long
+     * S	short
+     * Z	boolean
+     * V	void
+     * L	对象类型，如Ljava/lang/Object;
+     *
+     * @param returnString
+     * @return
+     */
+    private static String formatTypeElementString(String returnString) {
+        boolean isArray = false;
+        if (returnString.startsWith("[")) {
+            returnString = returnString.substring(1);
+            isArray = true;
+        }
+
+        // base
+        switch (returnString) {
+            case "B":
+                return "byte";
+            case "C":
+                return "char";
+            case "D":
+                return "double";
+            case "F":
+                return "float";
+            case "J":
+                return "long";
+            case "S":
+                return "short";
+            case "I":
+                return "int";
+            case "V":
+                return "void";
+            case "Z":
+                return "boolean";
+        }
+        // Object
+        if (returnString.startsWith("L")) {
+            returnString = returnString.substring(1).replace("/", ".");
+        }
+        if (returnString.endsWith(";")) {
+            returnString = returnString.substring(0, returnString.length() - 1);
+        }
+        // array
+        if (isArray) {
+            returnString += "[]";
+        }
+        return returnString;
+    }
+}
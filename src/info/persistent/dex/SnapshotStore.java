@@ -0,0 +1,262 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.persistent.dex;
+
+import vendor.com.android.dexdeps.DexData;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+/**
+ * Keeps the formatted (and unmapped) signatures of each DEX image on disk,
+ * so that a DEX seen in an earlier run isn't parsed again.  A snapshot is
+ * keyed by the checksum and SHA-1 signature from the DEX header, the SHA-1
+ * of the mapping file (if any), the package count options (if any) and
+ * the class filter (if any).
+ * <p>
+ * Layout (big-endian):
+ * <pre>
+ *   magic                    "dmcsnp01"
+ *   flags                    1: unmapped, 2: has package counts
+ *   methods, classes         string lists
+ *   obfuscated methods and classes, if unmapped
+ *   package trie, if any: node count, then parent and segment of each
+ *       node after the root, then the count of each node
+ * </pre>
+ * A string list is a count followed by the strings in sorted order, each
+ * as the number of leading UTF-8 bytes it shares with the previous one
+ * and then the rest of its bytes.  Numbers are unsigned LEB128 except for
+ * the flags.  Signatures share long prefixes, so this is several times
+ * smaller than the strings themselves.
+ * <p>
+ * Snapshots are written to a temp file and renamed into place, so
+ * concurrent runs sharing the directory are safe.
+ */
+class SnapshotStore {
+    private static final byte[] MAGIC = "dmcsnp01".getBytes(StandardCharsets.US_ASCII);
+
+    private static final int FLAG_UNMAPPED = 1;
+    private static final int FLAG_PACKAGES = 2;
+
+    private final File mDir;
+
+    SnapshotStore(File dir) {
+        mDir = dir;
+    }
+
+    /**
+     * Returns the key of a DEX image's snapshot.
+     *
+     * @param header      the DEX, with at least its header loaded.
+     * @param mappingHash the SHA-1 of its mapping file, or null.
+     * @param options     the package count options, or null.
+     * @param filter      the class filter, or null.
+     */
+    static String key(DexData header, String mappingHash, PackageTrie.Options options,
+                      TypeFilter filter) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException nsae) {
+            throw new IOException(nsae);
+        }
+
+        int checksum = header.getChecksum();
+        digest.update(new byte[]{
+                (byte) (checksum >>> 24), (byte) (checksum >>> 16), (byte) (checksum >>> 8), (byte) checksum});
+        digest.update(header.getSignature());
+        digest.update(("\nmapping=" + (mappingHash != null ? mappingHash : "")).getBytes(StandardCharsets.UTF_8));
+        digest.update(("\npackages=" + (options != null ? options.key() : "")).getBytes(StandardCharsets.UTF_8));
+        if (filter != null) {
+            digest.update(("\nfilter=" + filter.key()).getBytes(StandardCharsets.UTF_8));
+        }
+        return Util.toHex(digest.digest());
+    }
+
+    /**
+     * Returns the snapshot with the given key, or null if there is none or
+     * it can't be read.
+     */
+    Main.InputResult read(String key, PackageTrie.Options options) {
+        File file = file(key);
+        if (!file.isFile()) {
+            return null;
+        }
+
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(Files.readAllBytes(file.toPath())));
+            byte[] magic = new byte[MAGIC.length];
+            in.readFully(magic);
+            if (!Arrays.equals(magic, MAGIC)) {
+                throw new IOException("not a DEX snapshot");
+            }
+            int flags = in.readInt();
+            if (((flags & FLAG_PACKAGES) != 0) != (options != null)) {
+                throw new IOException("package counts don't match");
+            }
+
+            Main.InputResult result = new Main.InputResult((flags & FLAG_UNMAPPED) != 0);
+            readStrings(in, result.methods);
+            readStrings(in, result.classes);
+            if (result.obfuscatedMethods != null) {
+                readStrings(in, result.obfuscatedMethods);
+                readStrings(in, result.obfuscatedClasses);
+            }
+            if (options != null) {
+                result.packages = readPackages(in, options);
+            }
+            return result;
+        } catch (EOFException eofe) {
+            System.err.println("Ignoring bad DEX snapshot " + file + ": truncated");
+            return null;
+        } catch (IOException ioe) {
+            System.err.println("Ignoring bad DEX snapshot " + file + ": " + ioe.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Stores a snapshot of an interned result under the given key.
+     * Failures are reported, but otherwise ignored.
+     */
+    void write(String key, Main.InputResult result, SignatureDictionary dictionary) {
+        File file = file(key);
+        try {
+            if (!mDir.isDirectory() && !mDir.mkdirs()) {
+                throw new IOException("can't create " + mDir);
+            }
+
+            File tempFile = File.createTempFile("dex", ".tmp", mDir);
+            try {
+                DataOutputStream out = new DataOutputStream(
+                        new BufferedOutputStream(new FileOutputStream(tempFile), 65536));
+                try {
+                    out.write(MAGIC);
+                    out.writeInt((result.obfuscatedMethodIds != null ? FLAG_UNMAPPED : 0) |
+                            (result.packages != null ? FLAG_PACKAGES : 0));
+                    writeStrings(out, dictionary.getSorted(result.methodIds));
+                    writeStrings(out, dictionary.getSorted(result.classIds));
+                    if (result.obfuscatedMethodIds != null) {
+                        writeStrings(out, dictionary.getSorted(result.obfuscatedMethodIds));
+                        writeStrings(out, dictionary.getSorted(result.obfuscatedClassIds));
+                    }
+                    if (result.packages != null) {
+                        writePackages(out, result.packages);
+                    }
+                } finally {
+                    out.close();
+                }
+
+                if (!tempFile.renameTo(file)) {
+                    throw new IOException("can't rename " + tempFile + " to " + file);
+                }
+            } finally {
+                tempFile.delete();
+            }
+        } catch (IOException ioe) {
+            System.err.println("Unable to write DEX snapshot " + file + ": " + ioe.getMessage());
+        }
+    }
+
+    private File file(String key) {
+        return new File(mDir, "dex-" + key + ".snap");
+    }
+
+    private static void writeStrings(DataOutputStream out, String[] sorted) throws IOException {
+        writeUnsigned(out, sorted.length);
+        byte[] previous = new byte[0];
+        for (String string : sorted) {
+            byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+            int shared = 0;
+            int max = Math.min(bytes.length, previous.length);
+            while (shared < max && bytes[shared] == previous[shared]) {
+                shared++;
+            }
+            writeUnsigned(out, shared);
+            writeUnsigned(out, bytes.length - shared);
+            out.write(bytes, shared, bytes.length - shared);
+            previous = bytes;
+        }
+    }
+
+    private static void readStrings(DataInputStream in, Collection<String> out) throws IOException {
+        int count = readUnsigned(in);
+        byte[] buffer = new byte[256];
+        int length = 0;
+        for (int i = 0; i < count; i++) {
+            int shared = readUnsigned(in);
+            int rest = readUnsigned(in);
+            if (shared > length || rest < 0) {
+                throw new IOException("bad string " + i);
+            }
+            if (shared + rest > buffer.length) {
+                buffer = Arrays.copyOf(buffer, Math.max(shared + rest, buffer.length * 2));
+            }
+            in.readFully(buffer, shared, rest);
+            length = shared + rest;
+            out.add(new String(buffer, 0, length, StandardCharsets.UTF_8));
+        }
+    }
+
+    private static void writePackages(DataOutputStream out, PackageTrie packages) throws IOException {
+        writeUnsigned(out, packages.size());
+        for (int node = 1; node < packages.size(); node++) {
+            writeUnsigned(out, packages.parent(node));
+            out.writeUTF(packages.segment(node));
+        }
+        for (int node = 0; node < packages.size(); node++) {
+            writeUnsigned(out, packages.count(node));
+        }
+    }
+
+    private static PackageTrie readPackages(DataInputStream in, PackageTrie.Options options) throws IOException {
+        PackageTrie packages = new PackageTrie(options);
+        int size = readUnsigned(in);
+        for (int node = 1; node < size; node++) {
+            int parent = readUnsigned(in);
+            if (parent >= node || packages.child(parent, in.readUTF(), true) != node) {
+                throw new IOException("bad package " + node);
+            }
+        }
+        for (int node = 0; node < size; node++) {
+            packages.add(node, readUnsigned(in));
+        }
+        return packages;
+    }
+
+    private static void writeUnsigned(DataOutputStream out, int value) throws IOException {
+        while ((value & ~0x7f) != 0) {
+            out.write((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    private static int readUnsigned(DataInputStream in) throws IOException {
+        int result = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = in.readUnsignedByte();
+            result |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return result;
+            }
+        }
+        throw new IOException("bad number");
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.persistent.dex;
+
+import vendor.com.android.dexdeps.DexData;
+
+/**
+ * The --include/--exclude class name prefixes, which --package-filter and
+ * --package-exclude are older names for.  They are applied to each
+ * DEX's type_ids once, before anything is formatted, and the classes they
+ * reject (with all their methods) are left out of everything after that:
+ * totals, diffs and package counts.
+ * <p>
+ * Prefixes are of original, dotted names.  Without a mapping they are
+ * matched against the raw descriptors; with one, each class name has to
+ * be unmapped first, but still only once per type.
+ */
+class TypeFilter {
+    private final String[] mIncludePrefixes;
+    private final String[] mExcludePrefixes;
+
+    /**
+     * @param includePrefixes only keep classes starting with one of these,
+     *                        or all classes if null.
+     * @param excludePrefixes drop classes starting with one of these; may
+     *                        be null.
+     */
+    TypeFilter(String[] includePrefixes, String[] excludePrefixes) {
+        mIncludePrefixes = includePrefixes;
+        mExcludePrefixes = excludePrefixes;
+    }
+
+    /**
+     * Returns a string that differs whenever the filter would keep
+     * different classes, for keying cached results.
+     */
+    String key() {
+        return "include=" + (mIncludePrefixes != null ? String.join(",", mIncludePrefixes) : "") +
+                " exclude=" + (mExcludePrefixes != null ? String.join(",", mExcludePrefixes) : "");
+    }
+
+    /**
+     * Returns which types of a DEX are rejected.  Only class types are
+     * judged; their methods and the class itself are then skipped.
+     *
+     * @param deobfuscator the DEX's mapping, or null.
+     * @return a flag for each type_ids index.
+     */
+    boolean[] rejectedTypes(DexData dexData, Deobfuscator deobfuscator) {
+        int typeCount = dexData.getTypeCount();
+        boolean[] rejected = new boolean[typeCount];
+        if (deobfuscator == null) {
+            boolean[] classes = dexData.findTypesWithPrefix(new String[]{"L"});
+            boolean[] included = mIncludePrefixes != null ?
+                    dexData.findTypesWithPrefix(descriptorPrefixes(mIncludePrefixes)) : null;
+            boolean[] excluded = mExcludePrefixes != null ?
+                    dexData.findTypesWithPrefix(descriptorPrefixes(mExcludePrefixes)) : null;
+            for (int i = 0; i < typeCount; i++) {
+                rejected[i] = classes[i] &&
+                        ((included != null && !included[i]) || (excluded != null && excluded[i]));
+            }
+            return rejected;
+        }
+
+        for (int i = 0; i < typeCount; i++) {
+            String descriptor = dexData.getTypeDescriptor(i);
+            if (descriptor.startsWith("L")) {
+                String className = deobfuscator.originalClassName(
+                        descriptor.substring(1, descriptor.length() - 1).replace('/', '.'));
+                rejected[i] = (mIncludePrefixes != null && !startsWithAny(className, mIncludePrefixes)) ||
+                        (mExcludePrefixes != null && startsWithAny(className, mExcludePrefixes));
+            }
+        }
+        return rejected;
+    }
+
+    /**
+     * Turns dotted name prefixes into descriptor prefixes: "com.example"
+     * becomes "Lcom/example".
+     */
+    private static String[] descriptorPrefixes(String[] prefixes) {
+        String[] descriptorPrefixes = new String[prefixes.length];
+        for (int i = 0; i < prefixes.length; i++) {
+            descriptorPrefixes[i] = "L" + prefixes[i].replace('.', '/');
+        }
+        return descriptorPrefixes;
+    }
+
+    private static boolean startsWithAny(String className, String[] prefixes) {
+        for (String prefix : prefixes) {
+            if (className.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,185 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package info.persistent.dex;
+
+import java.io.File;
+import java.util.*;
+
+/**
+ * What a daemon keeps between requests: loaded mappings and their
+ * hashes, and the signatures of each DEX it has processed, least recently
+ * used first out once they add up to more than the size limit.
+ * <p>
+ * A mapping is known by its path, size and modification time, so an
+ * edited file is loaded again.  A DEX is known by its snapshot key, like
+ * in the cache directory.  The signatures are kept as strings, not ids,
+ * since each request interns them in a dictionary of its own.  All
+ * methods are thread-safe.
+ */
+class WarmCache {
+    // Rough heap cost of a kept String beyond its characters.
+    private static final int STRING_OVERHEAD = 48;
+
+    private final long mMaxBytes;
+    private long mBytes;
+    private final LinkedHashMap<String, Entry> mEntries = new LinkedHashMap<>(16, 0.75f, true);
+
+    private static class Entry {
+        final Object value;
+        final long size;
+
+        Entry(Object value, long size) {
+            this.value = value;
+            this.size = size;
+        }
+    }
+
+    /**
+     * The sorted signatures of one DEX, as in a snapshot.
+     */
+    private static class Dex {
+        final String[] methods;
+        final String[] classes;
+        final String[] obfuscatedMethods;
+        final String[] obfuscatedClasses;
+        final PackageTrie packages;
+
+        Dex(String[] methods, String[] classes, String[] obfuscatedMethods, String[] obfuscatedClasses,
+            PackageTrie packages) {
+            this.methods = methods;
+            this.classes = classes;
+            this.obfuscatedMethods = obfuscatedMethods;
+            this.obfuscatedClasses = obfuscatedClasses;
+            this.packages = packages;
+        }
+    }
+
+    /**
+     * @param maxBytes about how much heap the cached things may take.
+     */
+    WarmCache(long maxBytes) {
+        mMaxBytes = maxBytes;
+    }
+
+    /**
+     * Returns the loaded mapping file, or null if it isn't cached or has
+     * changed since.
+     */
+    synchronized Deobfuscator getMapping(File mappingFile) {
+        Entry entry = mEntries.get("mapping:" + identity(mappingFile));
+        return entry != null ? (Deobfuscator) entry.value : null;
+    }
+
+    /**
+     * Keeps a loaded mapping file, counting its size on disk as the size
+     * of its index.
+     */
+    synchronized void putMapping(File mappingFile, Deobfuscator deobfuscator) {
+        put("mapping:" + identity(mappingFile), deobfuscator, mappingFile.length());
+    }
+
+    synchronized String getMappingHash(File mappingFile) {
+        Entry entry = mEntries.get("hash:" + identity(mappingFile));
+        return entry != null ? (String) entry.value : null;
+    }
+
+    synchronized void putMappingHash(File mappingFile, String hash) {
+        put("hash:" + identity(mappingFile), hash, STRING_OVERHEAD + 2L * hash.length());
+    }
+
+    /**
+     * Drops everything, e.g. when the heap ran out.
+     */
+    synchronized void clear() {
+        mEntries.clear();
+        mBytes = 0;
+    }
+
+    /**
+     * Returns the results of a DEX, not yet interned, or null if they
+     * aren't cached.
+     *
+     * @param options what package counts were asked for, or null.
+     */
+    Main.InputResult getDex(String key, PackageTrie.Options options) {
+        Dex dex;
+        synchronized (this) {
+            Entry entry = mEntries.get("dex:" + key);
+            if (entry == null) {
+                return null;
+            }
+            dex = (Dex) entry.value;
+        }
+        if ((dex.packages != null) != (options != null)) {
+            return null;
+        }
+
+        Main.InputResult result = new Main.InputResult(dex.obfuscatedMethods != null);
+        Collections.addAll(result.methods, dex.methods);
+        Collections.addAll(result.classes, dex.classes);
+        if (dex.obfuscatedMethods != null) {
+            Collections.addAll(result.obfuscatedMethods, dex.obfuscatedMethods);
+            Collections.addAll(result.obfuscatedClasses, dex.obfuscatedClasses);
+        }
+        // Only ever read once processed, so it can be shared.
+        result.packages = dex.packages;
+        return result;
+    }
+
+    /**
+     * Keeps the interned results of a DEX.
+     */
+    void putDex(String key, Main.InputResult result, SignatureDictionary dictionary) {
+        Dex dex = new Dex(dictionary.getSorted(result.methodIds), dictionary.getSorted(result.classIds),
+                result.obfuscatedMethodIds != null ? dictionary.getSorted(result.obfuscatedMethodIds) : null,
+                result.obfuscatedClassIds != null ? dictionary.getSorted(result.obfuscatedClassIds) : null,
+                result.packages);
+        long size = size(dex.methods) + size(dex.classes) + size(dex.obfuscatedMethods) +
+                size(dex.obfuscatedClasses);
+        synchronized (this) {
+            put("dex:" + key, dex, size);
+        }
+    }
+
+    private void put(String key, Object value, long size) {
+        Entry previous = mEntries.put(key, new Entry(value, size));
+        if (previous != null) {
+            mBytes -= previous.size;
+        }
+        mBytes += size;
+
+        // The newest entry stays even if it alone is over the limit.
+        Iterator<Entry> it = mEntries.values().iterator();
+        while (mBytes > mMaxBytes && mEntries.size() > 1) {
+            mBytes -= it.next().size;
+            it.remove();
+        }
+    }
+
+    private static long size(String[] strings) {
+        if (strings == null) {
+            return 0;
+        }
+        long size = 16 + 4L * strings.length;
+        for (String string : strings) {
+            size += STRING_OVERHEAD + 2L * string.length();
+        }
+        return size;
+    }
+
+    private static String identity(File file) {
+        return file.getAbsolutePath() + ":" + file.length() + ":" + file.lastModified();
+    }
+}